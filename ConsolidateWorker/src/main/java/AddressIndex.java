@@ -0,0 +1,205 @@
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// A base published with a key index also gets an address index: its IPv4 "source,destination" keys
+// sorted by numeric source and then destination, and a second time by destination and then source.
+// Each record points at the key's entry in the StateKeyIndex data object. A CIDR or wildcard query
+// reads the fences, then the blocks of records whose leading address can be in range, then the
+// matching entries. The data object is written in source order, so the entries of a source range
+// are one contiguous read. The index is
+//
+//   "CSTA" version 0 0 0 recordCount(8)
+//   fences by source, then by destination:   leading address of every FENCE_INTERVAL-th record(4)
+//   records by source, then by destination:  leading(4) other(4) offset(8) length(4)
+//
+// with big-endian integers. Keys that are not two IPv4 addresses are left out.
+public final class AddressIndex {
+
+    public static final String INDEX_KEY = "addresses.idx";
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 20;
+    public static final int FENCE_INTERVAL = 256;
+    public static final int BY_SOURCE = 0;
+    public static final int BY_DESTINATION = 1;
+
+    private static final byte[] MAGIC = { 'C', 'S', 'T', 'A' };
+
+    private AddressIndex() {
+    }
+
+    // records holds {source, destination, offset, length} per key.
+    public static byte[] build(List<long[]> records) {
+        long[][] bySource = records.toArray(new long[0][]);
+        long[][] byDestination = bySource.clone();
+        Arrays.sort(bySource, Comparator.<long[]>comparingLong(record -> record[0]).thenComparingLong(record -> record[1]));
+        Arrays.sort(byDestination, Comparator.<long[]>comparingLong(record -> record[1]).thenComparingLong(record -> record[0]));
+
+        int fences = fenceCount(bySource.length);
+        ByteBuffer index = ByteBuffer.allocate(Math.toIntExact(recordsOffset(bySource.length, 2)));
+        index.put(MAGIC).put((byte) VERSION).put(new byte[3]).putLong(bySource.length);
+        for (int fence = 0; fence < fences; fence++) {
+            index.putInt((int) bySource[fence * FENCE_INTERVAL][0]);
+        }
+        for (int fence = 0; fence < fences; fence++) {
+            index.putInt((int) byDestination[fence * FENCE_INTERVAL][1]);
+        }
+        for (long[] record : bySource) {
+            index.putInt((int) record[0]).putInt((int) record[1]).putLong(record[2]).putInt((int) record[3]);
+        }
+        for (long[] record : byDestination) {
+            index.putInt((int) record[1]).putInt((int) record[0]).putLong(record[2]).putInt((int) record[3]);
+        }
+        return index.array();
+    }
+
+    // Returns {source, destination} of a key made of two IPv4 addresses, or null.
+    public static long[] parseKey(String key) {
+        int comma = key.indexOf(',');
+        if (comma < 0) {
+            return null;
+        }
+        long source = parseAddress(key.substring(0, comma));
+        long destination = parseAddress(key.substring(comma + 1));
+        return source < 0 || destination < 0 ? null : new long[] { source, destination };
+    }
+
+    // Returns the address as an unsigned 32-bit value, or -1 when it is not a dotted-quad IPv4 address.
+    public static long parseAddress(String address) {
+        String[] parts = address.split("\\.", -1);
+        if (parts.length != 4) {
+            return -1;
+        }
+        long value = 0;
+        for (String part : parts) {
+            if (part.isEmpty() || part.length() > 3) {
+                return -1;
+            }
+            int octet = 0;
+            for (int i = 0; i < part.length(); i++) {
+                char c = part.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                octet = octet * 10 + (c - '0');
+            }
+            if (octet > 255) {
+                return -1;
+            }
+            value = value << 8 | octet;
+        }
+        return value;
+    }
+
+    public static long recordCount(byte[] head) {
+        ByteBuffer buffer = ByteBuffer.wrap(head);
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IllegalStateException("Not an address index.");
+        }
+        int version = buffer.get() & 0xff;
+        if (version > VERSION) {
+            throw new IllegalStateException("Unsupported address index version " + version);
+        }
+        return buffer.getLong(8);
+    }
+
+    public static int fenceCount(long recordCount) {
+        return (int) ((recordCount + FENCE_INTERVAL - 1) / FENCE_INTERVAL);
+    }
+
+    public static long fencesOffset(long recordCount, int order) {
+        return HEADER_SIZE + (long) order * fenceCount(recordCount) * 4;
+    }
+
+    public static long recordsOffset(long recordCount, int order) {
+        return fencesOffset(recordCount, 2) + order * recordCount * RECORD_SIZE;
+    }
+
+    // Returns {first, end} of the records of one order that can have their leading address in range,
+    // given that order's fences.
+    public static long[] span(ByteBuffer fences, long recordCount, Range leading) {
+        int count = fences.remaining() / 4;
+        int below = 0;
+        int through = 0;
+        for (int fence = 0; fence < count; fence++) {
+            long address = fences.getInt(fences.position() + fence * 4) & 0xffffffffL;
+            if (address < leading.first) {
+                below++;
+            }
+            if (address <= leading.last) {
+                through++;
+            }
+        }
+        long first = (long) Math.max(0, below - 1) * FENCE_INTERVAL;
+        long end = Math.min(recordCount, (long) through * FENCE_INTERVAL);
+        return new long[] { first, Math.max(first, end) };
+    }
+
+    // Returns {offset, length} of the entries among records whose leading and other address are in
+    // range, in data object order.
+    public static List<long[]> matches(ByteBuffer records, Range leading, Range other) {
+        List<long[]> matches = new ArrayList<>();
+        for (int record = records.position(); record + RECORD_SIZE <= records.limit(); record += RECORD_SIZE) {
+            if (leading.contains(records.getInt(record) & 0xffffffffL)
+                    && other.contains(records.getInt(record + 4) & 0xffffffffL)) {
+                matches.add(new long[] { records.getLong(record + 8), records.getInt(record + 16) });
+            }
+        }
+        matches.sort(Comparator.comparingLong(match -> match[0]));
+        return matches;
+    }
+
+    // An inclusive range of IPv4 addresses, from "*", an address or a CIDR block such as 10.0.0.0/8.
+    public static final class Range {
+
+        public static final Range ANY = new Range(0, 0xffffffffL);
+
+        final long first;
+        final long last;
+
+        private Range(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        public static boolean isPattern(String text) {
+            return text.trim().equals("*") || text.indexOf('/') >= 0;
+        }
+
+        public static Range parse(String text) {
+            String trimmed = text.trim();
+            if (trimmed.equals("*")) {
+                return ANY;
+            }
+            int slash = trimmed.indexOf('/');
+            long address = parseAddress(slash < 0 ? trimmed : trimmed.substring(0, slash));
+            int prefix = 32;
+            if (slash >= 0) {
+                try {
+                    prefix = Integer.parseInt(trimmed.substring(slash + 1));
+                } catch (NumberFormatException e) {
+                    prefix = -1;
+                }
+            }
+            if (address < 0 || prefix < 0 || prefix > 32) {
+                throw new IllegalArgumentException("Not an IPv4 address, CIDR block or *: " + text);
+            }
+            long hostBits = (1L << (32 - prefix)) - 1;
+            return new Range(address & ~hostBits, (address & ~hostBits) | hostBits);
+        }
+
+        public boolean contains(long address) {
+            return address >= first && address <= last;
+        }
+
+        public long size() {
+            return last - first + 1;
+        }
+    }
+}
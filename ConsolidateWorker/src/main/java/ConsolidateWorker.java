@@ -1,11 +1,9 @@
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -13,34 +11,44 @@ import java.util.List;
 import com.opencsv.CSVReader;
 import com.opencsv.exceptions.CsvException;
 
-import software.amazon.awssdk.core.ResponseInputStream;
-import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
 import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.S3Exception;
 
 public class ConsolidateWorker {
 
-    private final S3Client s3Client;
-    private final String outputBucket;
+    private final ShardedStateStore stateStore;
+    private final HeavyHitterStore heavyHitters;
+    private volatile boolean rollUp;
 
     public ConsolidateWorker(String outputBucket) {
-        this.s3Client = S3Client.builder().build();
-        this.outputBucket = outputBucket;
+        this(S3Client.builder().build(), outputBucket);
     }
 
-    public String run(InputStream inputStream, String sourceKey) {
-        try {
-            HashMap<String, List<List<String>>> ConsolidateMap = new HashMap<>();
+    public ConsolidateWorker(S3Client s3Client, String outputBucket) {
+        this(s3Client, outputBucket, ObjectCodec.NONE);
+    }
 
-            ConsolidateMap = ReadConsolidateMapFromS3(outputBucket);
+    public ConsolidateWorker(S3Client s3Client, String outputBucket, ObjectCodec stateCodec) {
+        this.stateStore = new ShardedStateStore(s3Client, outputBucket, stateCodec);
+        this.heavyHitters = new HeavyHitterStore(s3Client, outputBucket);
+    }
 
-            processCsv(inputStream, ConsolidateMap);
+    public ShardedStateStore getStateStore() {
+        return stateStore;
+    }
+
+    // With roll-up on, each batch holds one row per key and date, the sums of that date's summary rows,
+    // and the state store sums them again as it compacts, see DailyRollup.
+    public void setRollUp(boolean rollUp) {
+        this.rollUp = rollUp;
+        stateStore.setRollUp(rollUp);
+    }
 
-            WriteNewhashmapToS3(ConsolidateMap, outputBucket);
+    public String run(InputStream inputStream, String sourceKey) {
+        try {
+            consolidate(readBatch(inputStream, sourceKey), sourceKey);
 
             return "Successfully processed " + sourceKey;
 
@@ -49,21 +57,52 @@ public class ConsolidateWorker {
         }
     }
 
+    public HashMap<String, List<List<String>>> readBatch(InputStream inputStream) throws IOException, CsvException {
+        HashMap<String, List<List<String>>> batch = new HashMap<>();
+        processCsv(inputStream, batch);
+        return batch;
+    }
+
+    // Address sketch files, see AddressSketches, are read as fan:<address> rows instead of summary rows.
+    public HashMap<String, List<List<String>>> readBatch(InputStream inputStream, String sourceKey)
+            throws IOException, CsvException {
+        if (AddressSketches.isSketchFile(sourceKey)) {
+            return AddressSketches.read(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+        }
+        return readBatch(inputStream);
+    }
+
+    // Merges a heavy-hitter report of the summarize stage into the consolidated one, see HeavyHitterStore.
+    public void mergeHeavyHitters(String sourceBucket, String reportKey) {
+        heavyHitters.merge(sourceBucket, reportKey);
+    }
+
+    public void consolidate(HashMap<String, List<List<String>>> batch, String sourceKey) {
+        int shards = stateStore.appendSegment(batch);
+        System.out.println("Consolidated " + sourceKey + " into " + shards + " shard(s)");
+    }
+
     public void processCsv(InputStream inputStream, HashMap<String, List<List<String>>> ConsolidateMap)
             throws IOException, CsvException {
 
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream)); CSVReader csvReader = new CSVReader(reader)) {
 
             List<String[]> records = csvReader.readAll();
+            HashMap<String, DailyRollup> rollups = rollUp ? new HashMap<>() : null;
 
             for (int i = 1; i < records.size(); i++) {
                 String[] record = records.get(i);
-                processRecord(record, ConsolidateMap);
+                processRecord(record, ConsolidateMap, rollups);
+            }
+
+            if (rollups != null) {
+                rollups.forEach((key, rollup) -> ConsolidateMap.put(key, rollup.rows()));
             }
         }
     }
 
-    private void processRecord(String[] record, HashMap<String, List<List<String>>> ConsolidateMap) {
+    private void processRecord(String[] record, HashMap<String, List<List<String>>> ConsolidateMap,
+            HashMap<String, DailyRollup> rollups) {
 
         String sourceIp = record[1];
         String destIp = record[2];
@@ -83,54 +122,20 @@ public class ConsolidateWorker {
         Value.add(flowDuration);
         Value.add(forwardPackets);
 
+        if (rollups != null) {
+            rollups.computeIfAbsent(key, k -> {
+                DailyRollup rollup = new DailyRollup();
+                rollup.addAll(ConsolidateMap.getOrDefault(k, new ArrayList<>()));
+                return rollup;
+            }).add(Value);
+            return;
+        }
+
         ConsolidateMap.putIfAbsent(key, new ArrayList<>());
         
         ConsolidateMap.get(key).add(Value);
     }
 
-    private HashMap<String, List<List<String>>> ReadConsolidateMapFromS3(String bucketName) {
-        HashMap<String, List<List<String>>> map = null;
-
-        try {
-            if (!fileExistsOnS3(s3Client, bucketName, "hashmap.ser")) {
-                System.out.println("Le fichier hashmap.set n'existe pas. Initialisation d'une HashMap vide.");
-                return new HashMap<>();
-            }
-
-            GetObjectRequest getObjectRequest = GetObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key("hashmap.ser")
-                    .build();
-
-            ResponseInputStream<?> s3ObjectStream = s3Client.getObject(getObjectRequest);
-
-            try (InputStream inputStream = s3ObjectStream; ObjectInputStream objectInputStream = new ObjectInputStream(inputStream)) {
-
-                Object obj = objectInputStream.readObject();
-                if (obj instanceof HashMap) {
-                    @SuppressWarnings("unchecked")
-                    HashMap<String, List<List<String>>> tempMap = (HashMap<String, List<List<String>>>) obj;
-                    map = tempMap;
-                } else {
-                    System.err.println("The deserialzed object is not a HashMap.");
-                }
-            }
-
-            System.out.println("HashMap chargée depuis S3 avec succès.");
-        } catch (S3Exception e) {
-            System.err.println("Erreur S3 : " + e.awsErrorDetails().errorMessage());
-            e.printStackTrace();
-        } catch (IOException e) {
-            System.err.println("Erreur d'E/S lors de la lecture de l'objet S3.");
-            e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            System.err.println("Classe non trouvée lors de la désérialisation.");
-            e.printStackTrace();
-        }
-
-        return map;
-    }
-
     public static boolean fileExistsOnS3(S3Client s3, String bucketName, String key) {
         try {
             HeadObjectRequest headObjectRequest = HeadObjectRequest.builder()
@@ -151,32 +156,4 @@ public class ConsolidateWorker {
             }
         }
     }
-
-    public void WriteNewhashmapToS3(HashMap<String, List<List<String>>> map, String bucketName) {
-        try {
-
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
-
-            objectOutputStream.writeObject(map);
-            objectOutputStream.close();
-
-            byte[] bytes = byteArrayOutputStream.toByteArray();
-
-            PutObjectRequest putObjectRequest = PutObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key("hashmap.ser")
-                    .build();
-
-            s3Client.putObject(putObjectRequest, RequestBody.fromBytes(bytes));
-
-            System.out.println("HashMap sérialisée téléchargée avec succès sur S3.");
-        } catch (S3Exception e) {
-            System.err.println("Erreur S3 : " + e.awsErrorDetails().errorMessage());
-            e.printStackTrace();
-        } catch (IOException e) {
-            System.err.println("Erreur d'E/S lors de la sérialisation de l'objet.");
-            e.printStackTrace();
-        }
-    }
 }
@@ -0,0 +1,68 @@
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Sums the rows of one key that share a date into a single row date, duration, packets, so the state
+// grows with the number of days instead of the number of ingested summaries. Integral sums are
+// written as longs, which ConsolidatedStateFormat stores as varints, other sums as doubles. Rows that
+// are not date, duration, packets are kept as they are.
+public final class DailyRollup {
+
+    private final LinkedHashMap<String, double[]> totals = new LinkedHashMap<>();
+    private final List<List<String>> otherRows = new ArrayList<>();
+
+    public static List<List<String>> merge(List<List<String>> rows, List<List<String>> more) {
+        DailyRollup rollup = new DailyRollup();
+        rollup.addAll(rows);
+        rollup.addAll(more);
+        return rollup.rows();
+    }
+
+    public void addAll(List<List<String>> rows) {
+        for (List<String> row : rows) {
+            add(row);
+        }
+    }
+
+    public void add(List<String> row) {
+        if (row.size() != 3 || !add(row.get(0), row.get(1), row.get(2))) {
+            otherRows.add(row);
+        }
+    }
+
+    // Returns false, and adds nothing, when duration or packets is not a number.
+    public boolean add(String date, String duration, String packets) {
+        double durationValue;
+        double packetsValue;
+        try {
+            durationValue = Double.parseDouble(duration);
+            packetsValue = Double.parseDouble(packets);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        double[] total = totals.computeIfAbsent(date, d -> new double[2]);
+        total[0] += durationValue;
+        total[1] += packetsValue;
+        return true;
+    }
+
+    public List<List<String>> rows() {
+        List<List<String>> rows = new ArrayList<>(totals.size() + otherRows.size());
+        for (Map.Entry<String, double[]> total : totals.entrySet()) {
+            List<String> row = new ArrayList<>(3);
+            row.add(total.getKey());
+            row.add(format(total.getValue()[0]));
+            row.add(format(total.getValue()[1]));
+            rows.add(row);
+        }
+        rows.addAll(otherRows);
+        return rows;
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+}
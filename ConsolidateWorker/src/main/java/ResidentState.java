@@ -0,0 +1,121 @@
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Keeps the consolidated map in memory for the life of the poller, one map per state shard. Each
+// applied batch carries a token, and a token is handed back only once a checkpoint that contains its
+// batch is in S3. A checkpoint rewrites only the shards changed since the previous one. With the key
+// index on, the per-key statistics of the index entries are kept running as well, so a checkpoint
+// does not recompute them from every row.
+public class ResidentState<T> {
+
+    private final ShardedStateStore stateStore;
+    private final int checkpointFiles;
+    private final Object checkpointLock = new Object();
+    private final BitSet dirty = new BitSet();
+
+    private List<HashMap<String, List<List<String>>>> maps;
+    private List<HashMap<String, KeyStatistics>> statistics;
+    private SegmentedStateStore.Base[] bases;
+    private List<T> uncheckpointed = new ArrayList<>();
+    private boolean foldedSegmentsDeleted;
+
+    public ResidentState(ShardedStateStore stateStore, int checkpointFiles) {
+        this.stateStore = stateStore;
+        this.checkpointFiles = checkpointFiles;
+    }
+
+    // Every shard starts dirty, so the first checkpoint writes bases that include the segments read
+    // here before those segments are deleted.
+    public synchronized void load() {
+        SegmentedStateStore.Snapshot[] snapshots = stateStore.readSnapshots();
+        maps = new ArrayList<>(snapshots.length);
+        statistics = stateStore.keyIndex() ? new ArrayList<>(snapshots.length) : null;
+        bases = new SegmentedStateStore.Base[snapshots.length];
+        long keys = 0;
+        long rows = 0;
+        for (int shard = 0; shard < snapshots.length; shard++) {
+            HashMap<String, List<List<String>>> map = snapshots[shard].map;
+            maps.add(map);
+            bases[shard] = snapshots[shard].base;
+            keys += map.size();
+            rows += map.values().stream().mapToLong(List::size).sum();
+            if (statistics != null) {
+                HashMap<String, KeyStatistics> shardStatistics = new HashMap<>();
+                for (Map.Entry<String, List<List<String>>> entry : map.entrySet()) {
+                    shardStatistics.put(entry.getKey(), KeyStatistics.of(entry.getValue()));
+                }
+                statistics.add(shardStatistics);
+            }
+        }
+        dirty.set(0, snapshots.length);
+        System.out.println("Loaded " + keys + " keys and " + rows + " rows in " + snapshots.length + " shard(s) into memory");
+    }
+
+    // Returns true once enough batches have been applied since the last checkpoint.
+    public synchronized boolean apply(HashMap<String, List<List<String>>> batch, T token) {
+        batch.forEach((key, rows) -> {
+            int shard = stateStore.shardOf(key);
+            HashMap<String, List<List<String>>> map = maps.get(shard);
+            if (HyperLogLog.isStateKey(key)) {
+                map.put(key, HyperLogLog.union(map.getOrDefault(key, new ArrayList<>()), rows));
+            } else if (stateStore.rollUp()) {
+                map.put(key, DailyRollup.merge(map.getOrDefault(key, new ArrayList<>()), rows));
+            } else {
+                map.computeIfAbsent(key, k -> new ArrayList<>()).addAll(rows);
+            }
+            if (statistics != null) {
+                KeyStatistics keyStatistics = statistics.get(shard).computeIfAbsent(key, k -> new KeyStatistics());
+                for (List<String> row : rows) {
+                    keyStatistics.add(row);
+                }
+            }
+            dirty.set(shard);
+        });
+        uncheckpointed.add(token);
+        return uncheckpointed.size() >= checkpointFiles;
+    }
+
+    // The changed shards are serialized under the lock, so applying stalls only for the
+    // serialization and not for the upload. If the upload fails the shards stay dirty and the tokens
+    // are kept for the next checkpoint.
+    public List<T> checkpoint() {
+        synchronized (checkpointLock) {
+            Map<Integer, SegmentedStateStore.Image> serializedShards = new HashMap<>();
+            List<T> covered;
+            synchronized (this) {
+                if (uncheckpointed.isEmpty()) {
+                    return new ArrayList<>();
+                }
+                for (int shard = dirty.nextSetBit(0); shard >= 0; shard = dirty.nextSetBit(shard + 1)) {
+                    serializedShards.put(shard, stateStore.image(shard, maps.get(shard),
+                            statistics == null ? null : statistics.get(shard)));
+                }
+                dirty.clear();
+                covered = uncheckpointed;
+                uncheckpointed = new ArrayList<>();
+            }
+
+            try {
+                stateStore.writeBases(serializedShards, bases);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    serializedShards.keySet().forEach(dirty::set);
+                    covered.addAll(uncheckpointed);
+                    uncheckpointed = covered;
+                }
+                throw e;
+            }
+
+            System.out.println("Checkpointed " + covered.size() + " file(s) into " + serializedShards.size() + " shard(s)");
+            if (!foldedSegmentsDeleted) {
+                stateStore.deleteFoldedSegments(bases);
+                foldedSegmentsDeleted = true;
+            }
+            return covered;
+        }
+    }
+}
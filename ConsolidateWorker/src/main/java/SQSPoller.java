@@ -1,38 +1,127 @@
 
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.services.s3.event.S3EventNotification;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
 import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.SqsClientBuilder;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
 import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
 import software.amazon.awssdk.services.sqs.model.Message;
 import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
 
 public class SQSPoller {
 
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final int VISIBILITY_TIMEOUT = 60;
+    private static final int MAX_BATCH = 10;
+
     private final S3Client s3Client;
     private final SqsClient sqsClient;
     private final String sourceBucket;
     private final String queueUrl;
     private final ConsolidateWorker worker;
+    private final int workers;
+    private final int shardCount;
+    private final Map<String, Message> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Message> pendingDeletes = new ConcurrentLinkedQueue<>();
     private volatile boolean isRunning = true;
+    private ResidentState<ProcessedMessage> residentState;
+    private long checkpointMillis;
 
     public SQSPoller(String sourceBucket, String outputBucket, String queueUrl) {
-        this.s3Client = S3Client.builder().build();
-        this.sqsClient = SqsClient.builder().build();
+        this(S3Client.builder().build(), SqsClient.builder().build(), sourceBucket, outputBucket, queueUrl, 1);
+    }
+
+    public SQSPoller(S3Client s3Client, SqsClient sqsClient, String sourceBucket, String outputBucket, String queueUrl,
+            int workers) {
+        this(s3Client, sqsClient, sourceBucket, outputBucket, queueUrl, workers, ObjectCodec.NONE, 16);
+    }
+
+    // shardCount applies when the output bucket has no sharded state yet; after that the manifest
+    // decides.
+    public SQSPoller(S3Client s3Client, SqsClient sqsClient, String sourceBucket, String outputBucket, String queueUrl,
+            int workers, ObjectCodec stateCodec, int shardCount) {
+        this.s3Client = s3Client;
+        this.sqsClient = sqsClient;
         this.sourceBucket = sourceBucket;
         this.queueUrl = queueUrl;
-        this.worker = new ConsolidateWorker(outputBucket);
+        this.worker = new ConsolidateWorker(s3Client, outputBucket, stateCodec);
+        this.workers = workers;
+        this.shardCount = shardCount;
+    }
+
+    // Folds segments older than the grace period into the base snapshot in the background. The grace
+    // period must exceed the longest time a segment write can take, so a compaction never skips a
+    // segment that is still being written with an earlier timestamp.
+    public void scheduleCompaction(long intervalMillis, long graceMillis) {
+        ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "state-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                worker.getStateStore().compact(graceMillis);
+            } catch (Exception e) {
+                System.err.println("Error compacting consolidated state: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Publishes a key index with every base written, see StateKeyIndex.
+    public void publishKeyIndex(boolean keyIndex) {
+        worker.getStateStore().setKeyIndex(keyIndex);
+    }
+
+    // Sums the rows of each key and date as files are consolidated, see ConsolidateWorker.setRollUp().
+    public void rollUpOnIngest(boolean rollUp) {
+        worker.setRollUp(rollUp);
+    }
+
+    // Keeps the consolidated map in memory and writes it to S3 every checkpointFiles files or every
+    // checkpointMillis, whichever comes first. Messages and source files are deleted only after the
+    // checkpoint that covers them, so a crash replays them. Only one poller may run in this mode,
+    // and it does its own compaction.
+    public void useResidentState(int checkpointFiles, long checkpointMillis) {
+        this.residentState = new ResidentState<>(worker.getStateStore(), checkpointFiles);
+        this.checkpointMillis = checkpointMillis;
     }
 
     public void start() {
         System.out.println("Starting SQS Message Processor...");
+        worker.getStateStore().migrateUnsharded(shardCount);
+
+        if (workers > 1 || residentState != null) {
+            startConcurrent();
+            return;
+        }
 
         while (isRunning) {
             try {
@@ -40,7 +129,7 @@ public class SQSPoller {
                         .queueUrl(queueUrl)
                         .maxNumberOfMessages(1)
                         .waitTimeSeconds(20)
-                        .visibilityTimeout(60)
+                        .visibilityTimeout(VISIBILITY_TIMEOUT)
                         .build();
 
                 List<Message> messages = sqsClient.receiveMessage(receiveRequest).messages();
@@ -48,7 +137,6 @@ public class SQSPoller {
                 if (!messages.isEmpty()) {
                     for (Message message : messages) {
                         processMessage(message);
-                        deleteMessage(message);
                     }
                 } else {
                     System.out.println("No messages available. Waiting...");
@@ -60,10 +148,278 @@ public class SQSPoller {
         }
     }
 
+    // Receives up to ten messages per call, as many as there are free workers. Each message is
+    // processed on the pool while a heartbeat keeps it invisible, and finished messages are
+    // deleted ten at a time.
+    private void startConcurrent() {
+        ExecutorService executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "sqs-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sqs-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::extendVisibility, VISIBILITY_TIMEOUT / 3, VISIBILITY_TIMEOUT / 3, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(this::flushDeletes, 1, 1, TimeUnit.SECONDS);
+        if (residentState != null) {
+            residentState.load();
+            scheduler.scheduleWithFixedDelay(this::checkpoint, checkpointMillis, checkpointMillis, TimeUnit.MILLISECONDS);
+        }
+        Semaphore slots = new Semaphore(workers);
+
+        try {
+            while (isRunning) {
+                try {
+                    slots.acquire();
+                    int permits = 1;
+                    while (permits < MAX_BATCH && slots.tryAcquire()) {
+                        permits++;
+                    }
+
+                    List<Message> messages;
+                    try {
+                        ReceiveMessageRequest receiveRequest = ReceiveMessageRequest.builder()
+                                .queueUrl(queueUrl)
+                                .maxNumberOfMessages(permits)
+                                .waitTimeSeconds(20)
+                                .visibilityTimeout(VISIBILITY_TIMEOUT)
+                                .build();
+
+                        messages = sqsClient.receiveMessage(receiveRequest).messages();
+                    } finally {
+                        slots.release(permits);
+                    }
+
+                    if (messages.isEmpty()) {
+                        System.out.println("No messages available. Waiting...");
+                        continue;
+                    }
+
+                    for (Message message : messages) {
+                        slots.acquire();
+                        inFlight.put(message.receiptHandle(), message);
+                        if (residentState != null) {
+                            executor.submit(() -> {
+                                boolean checkpointDue;
+                                try {
+                                    checkpointDue = processMessageResident(message);
+                                } finally {
+                                    slots.release();
+                                }
+                                if (checkpointDue) {
+                                    checkpoint();
+                                }
+                            });
+                            continue;
+                        }
+                        executor.submit(() -> {
+                            try {
+                                if (processMessageConcurrently(message)) {
+                                    pendingDeletes.add(message);
+                                }
+                            } finally {
+                                inFlight.remove(message.receiptHandle());
+                                slots.release();
+                            }
+                            if (pendingDeletes.size() >= MAX_BATCH) {
+                                flushDeletes();
+                            }
+                        });
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    System.err.println("Error in message processing loop: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(VISIBILITY_TIMEOUT, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (residentState != null) {
+                checkpoint();
+            }
+            flushDeletes();
+            scheduler.shutdownNow();
+        }
+    }
+
+    private boolean processMessageConcurrently(Message message) {
+        try {
+            S3EventNotification s3Event = MAPPER.readValue(message.body(), S3EventNotification.class);
+
+            for (S3EventNotification.S3EventNotificationRecord record : s3Event.getRecords()) {
+                String bucketName = record.getS3().getBucket().getName();
+                String objectKey = record.getS3().getObject().getKey();
+
+                System.out.printf("Processing file: %s from bucket: %s%n", objectKey, bucketName);
+
+                if (HeavyHitters.isReport(objectKey)) {
+                    worker.mergeHeavyHitters(bucketName, objectKey);
+                    deleteFileFromSourceBucket(objectKey);
+                    continue;
+                }
+
+                GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key(objectKey)
+                        .build();
+
+                // The source file is deleted only after its segment is written, so a file that is gone
+                // was consolidated already and its message, replayed because the delete failed, is
+                // deleted as processed.
+                HashMap<String, List<List<String>>> batch;
+                try (ResponseInputStream<GetObjectResponse> s3ObjectResponse = s3Client.getObject(getObjectRequest);
+                        InputStream summary = ObjectCodec.fromMetadata(s3ObjectResponse.response().metadata()).decode(s3ObjectResponse)) {
+                    batch = worker.readBatch(summary, objectKey);
+                } catch (NoSuchKeyException e) {
+                    System.out.println("Skipping " + objectKey + ", it was already consolidated.");
+                    continue;
+                }
+
+                worker.consolidate(batch, objectKey);
+                deleteFileFromSourceBucket(objectKey);
+            }
+            return true;
+
+        } catch (Exception e) {
+            System.err.println("Error processing message, it will be received again: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // The message stays in inFlight, and keeps being extended, until a checkpoint covers it. A
+    // message that fails is left to become visible again. Source files are deleted only after the
+    // checkpoint that covers them, so a file that is gone was checkpointed, and a message whose files
+    // are all gone, replayed because its delete failed or the poller stopped, is deleted right away.
+    private boolean processMessageResident(Message message) {
+        try {
+            S3EventNotification s3Event = MAPPER.readValue(message.body(), S3EventNotification.class);
+            HashMap<String, List<List<String>>> batch = new HashMap<>();
+            List<String> sourceKeys = new ArrayList<>();
+
+            for (S3EventNotification.S3EventNotificationRecord record : s3Event.getRecords()) {
+                String bucketName = record.getS3().getBucket().getName();
+                String objectKey = record.getS3().getObject().getKey();
+
+                System.out.printf("Processing file: %s from bucket: %s%n", objectKey, bucketName);
+
+                // Reports are not part of the state, so they are merged and deleted right away rather
+                // than at the next checkpoint. A replayed message finds the report gone and skips it.
+                if (HeavyHitters.isReport(objectKey)) {
+                    worker.mergeHeavyHitters(bucketName, objectKey);
+                    deleteFileFromSourceBucket(objectKey);
+                    continue;
+                }
+
+                GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key(objectKey)
+                        .build();
+
+                try (ResponseInputStream<GetObjectResponse> s3ObjectResponse = s3Client.getObject(getObjectRequest);
+                        InputStream summary = ObjectCodec.fromMetadata(s3ObjectResponse.response().metadata()).decode(s3ObjectResponse)) {
+                    SegmentedStateStore.merge(batch, worker.readBatch(summary, objectKey));
+                } catch (NoSuchKeyException e) {
+                    System.out.println("Skipping " + objectKey + ", it was already checkpointed.");
+                    continue;
+                }
+                sourceKeys.add(objectKey);
+            }
+
+            if (sourceKeys.isEmpty()) {
+                inFlight.remove(message.receiptHandle());
+                pendingDeletes.add(message);
+                return false;
+            }
+            return residentState.apply(batch, new ProcessedMessage(message, sourceKeys));
+
+        } catch (Exception e) {
+            System.err.println("Error processing message, it will be received again: " + e.getMessage());
+            e.printStackTrace();
+            inFlight.remove(message.receiptHandle());
+            return false;
+        }
+    }
+
+    private void checkpoint() {
+        try {
+            for (ProcessedMessage processed : residentState.checkpoint()) {
+                for (String sourceKey : processed.sourceKeys) {
+                    deleteFileFromSourceBucket(sourceKey);
+                }
+                inFlight.remove(processed.message.receiptHandle());
+                pendingDeletes.add(processed.message);
+            }
+            flushDeletes();
+        } catch (Exception e) {
+            System.err.println("Error writing checkpoint, it will be retried: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void extendVisibility() {
+        List<Message> messages = new ArrayList<>(inFlight.values());
+        for (int from = 0; from < messages.size(); from += MAX_BATCH) {
+            List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>();
+            for (int i = from; i < Math.min(from + MAX_BATCH, messages.size()); i++) {
+                entries.add(ChangeMessageVisibilityBatchRequestEntry.builder()
+                        .id(Integer.toString(i - from))
+                        .receiptHandle(messages.get(i).receiptHandle())
+                        .visibilityTimeout(VISIBILITY_TIMEOUT)
+                        .build());
+            }
+
+            try {
+                sqsClient.changeMessageVisibilityBatch(ChangeMessageVisibilityBatchRequest.builder()
+                        .queueUrl(queueUrl)
+                        .entries(entries)
+                        .build());
+            } catch (Exception e) {
+                System.err.println("Error extending message visibility: " + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized void flushDeletes() {
+        while (!pendingDeletes.isEmpty()) {
+            List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>();
+            Message message;
+            while (entries.size() < MAX_BATCH && (message = pendingDeletes.poll()) != null) {
+                entries.add(DeleteMessageBatchRequestEntry.builder()
+                        .id(Integer.toString(entries.size()))
+                        .receiptHandle(message.receiptHandle())
+                        .build());
+            }
+
+            try {
+                DeleteMessageBatchResponse response = sqsClient.deleteMessageBatch(DeleteMessageBatchRequest.builder()
+                        .queueUrl(queueUrl)
+                        .entries(entries)
+                        .build());
+
+                for (BatchResultErrorEntry failed : response.failed()) {
+                    System.err.println("Error deleting message from SQS: " + failed.code() + " - " + failed.message());
+                }
+            } catch (Exception e) {
+                System.err.println("Error deleting messages from SQS: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
     private void processMessage(Message message) {
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            S3EventNotification s3Event = mapper.readValue(message.body(), S3EventNotification.class);
+            S3EventNotification s3Event = MAPPER.readValue(message.body(), S3EventNotification.class);
 
             boolean processedSuccessfully = true;
 
@@ -93,13 +449,20 @@ public class SQSPoller {
 
     private void processS3Object(String sourceBucket, String fileKey) {
         try {
+            if (HeavyHitters.isReport(fileKey)) {
+                worker.mergeHeavyHitters(sourceBucket, fileKey);
+                deleteFileFromSourceBucket(fileKey);
+                return;
+            }
+
             GetObjectRequest getObjectRequest = GetObjectRequest.builder()
                     .bucket(sourceBucket)
                     .key(fileKey)
                     .build();
 
-            try (ResponseInputStream<GetObjectResponse> s3ObjectResponse = s3Client.getObject(getObjectRequest)) {
-                worker.run(s3ObjectResponse, fileKey);
+            try (ResponseInputStream<GetObjectResponse> s3ObjectResponse = s3Client.getObject(getObjectRequest);
+                        InputStream summary = ObjectCodec.fromMetadata(s3ObjectResponse.response().metadata()).decode(s3ObjectResponse)) {
+                worker.run(summary, fileKey);
             }
 
             deleteFileFromSourceBucket(fileKey);
@@ -143,12 +506,54 @@ public class SQSPoller {
         System.out.println("Stopping SQS Message Processor...");
     }
 
+    private static class ProcessedMessage {
+
+        final Message message;
+        final List<String> sourceKeys;
+
+        ProcessedMessage(Message message, List<String> sourceKeys) {
+            this.message = message;
+            this.sourceKeys = sourceKeys;
+        }
+    }
+
     public static void main(String[] args) {
         String sourceBucket = "s3-summarized-data-ec2-021095";
         String destinationBucket = "s3-consolidated-data-ec2-021095";
-        String queueUrl = "https://sqs.us-east-1.amazonaws.com/533975815005/ec2-sqs";  
+        String queueUrl = System.getProperty("consolidate.queue.url", "https://sqs.us-east-1.amazonaws.com/533975815005/ec2-sqs");  
+        int workers = Integer.getInteger("consolidate.workers", 1);
+        ObjectCodec stateCodec = ObjectCodec.fromName(System.getProperty("consolidate.state.codec"));
+        int shardCount = Integer.getInteger("consolidate.shards", 16);
+        long compactionMinutes = Long.getLong("consolidate.compaction.minutes", 10);
+        long compactionGraceSeconds = Long.getLong("consolidate.compaction.graceSeconds", 300);
+        boolean resident = Boolean.getBoolean("consolidate.resident");
+        int checkpointFiles = Integer.getInteger("consolidate.checkpoint.files", 100);
+        long checkpointSeconds = Long.getLong("consolidate.checkpoint.seconds", 30);
+        boolean keyIndex = Boolean.parseBoolean(System.getProperty("consolidate.index", "true"));
+        boolean rollUp = Boolean.getBoolean("consolidate.rollup");
+
+        S3ClientBuilder s3Builder = S3Client.builder();
+        String s3Endpoint = System.getProperty("consolidate.s3.endpoint");
+        if (s3Endpoint != null) {
+            s3Builder.endpointOverride(URI.create(s3Endpoint)).forcePathStyle(true);
+        }
 
-        SQSPoller app = new SQSPoller(sourceBucket, destinationBucket, queueUrl);
+        SqsClientBuilder sqsBuilder = SqsClient.builder();
+        String sqsEndpoint = System.getProperty("consolidate.sqs.endpoint");
+        if (sqsEndpoint != null) {
+            sqsBuilder.endpointOverride(URI.create(sqsEndpoint));
+        }
+
+        SQSPoller app = new SQSPoller(s3Builder.build(), sqsBuilder.build(), sourceBucket, destinationBucket, queueUrl, workers,
+                stateCodec, shardCount);
+        app.publishKeyIndex(keyIndex);
+        app.rollUpOnIngest(rollUp);
+        if (resident) {
+            app.useResidentState(checkpointFiles, TimeUnit.SECONDS.toMillis(checkpointSeconds));
+        } else if (compactionMinutes > 0) {
+            app.scheduleCompaction(TimeUnit.MINUTES.toMillis(compactionMinutes),
+                    TimeUnit.SECONDS.toMillis(compactionGraceSeconds));
+        }
         app.start();
     }
 }
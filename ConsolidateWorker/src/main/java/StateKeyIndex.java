@@ -0,0 +1,251 @@
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+// A base can be published a second time as a data object plus a sorted key index, so one key is
+// found with a few range GETs instead of a download of the whole base. The data object is the
+// concatenation of one entry per key, never compressed, so any entry can be decoded from its own
+// byte range. The index is
+//
+//   "CSTI" version 0 0 0 recordCount(8)
+//   record: keyHash(8) offset(8) length(4)     sorted by unsigned keyHash
+//   entry:  statisticsLength(4) key(UTF) KeyStatistics, then a single-entry ConsolidatedStateFormat blob
+//
+// with big-endian integers. Version 1 entries are the ConsolidatedStateFormat blob alone. Entries are
+// written in AddressIndex source order, other keys last. Key hashes are uniformly spread, so a lookup
+// guesses the record's position from its hash and usually finds it in the first window it reads.
+public final class StateKeyIndex {
+
+    public static final String INDEX_KEY = "hashmap.idx";
+    public static final String DATA_PREFIX = "data/";
+    public static final String DATA_KEY = "data-key";
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 20;
+
+    // Records read around a guessed position; also the size below which a range is read whole.
+    static final int WINDOW_RECORDS = 512;
+    static final int MAX_WINDOW_RECORDS = 8192;
+
+    private static final byte[] MAGIC = { 'C', 'S', 'T', 'I' };
+
+    private StateKeyIndex() {
+    }
+
+    // statistics may hold running statistics for some keys; the others get theirs from their rows.
+    public static Built build(Map<String, List<List<String>>> map, Map<String, KeyStatistics> statistics) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(data);
+        ByteArrayOutputStream statisticsBytes = new ByteArrayOutputStream();
+        long[][] records = new long[map.size()][];
+        List<long[]> addressRecords = new ArrayList<>();
+        int count = 0;
+
+        List<Map.Entry<String, long[]>> ordered = new ArrayList<>(map.size());
+        for (String key : map.keySet()) {
+            ordered.add(Map.entry(key, addressOrder(key)));
+        }
+        ordered.sort(Comparator.<Map.Entry<String, long[]>>comparingLong(entry -> entry.getValue()[0])
+                .thenComparingLong(entry -> entry.getValue()[1]));
+
+        try {
+            for (Map.Entry<String, long[]> entry : ordered) {
+                String key = entry.getKey();
+                List<List<String>> rows = map.get(key);
+                KeyStatistics keyStatistics = statistics == null ? null : statistics.get(key);
+                statisticsBytes.reset();
+                DataOutputStream statisticsOut = new DataOutputStream(statisticsBytes);
+                statisticsOut.writeUTF(key);
+                (keyStatistics != null ? keyStatistics : KeyStatistics.of(rows)).write(statisticsOut);
+
+                long offset = data.size();
+                out.writeInt(statisticsBytes.size());
+                statisticsBytes.writeTo(out);
+                ConsolidatedStateFormat.write(Collections.singletonMap(key, rows), out);
+                long length = data.size() - offset;
+                records[count++] = new long[] { hash(key), offset, length };
+                long[] addresses = entry.getValue();
+                if (addresses[0] <= 0xffffffffL) {
+                    addressRecords.add(new long[] { addresses[0], addresses[1], offset, length });
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to build the key index", e);
+        }
+        Arrays.sort(records, (a, b) -> Long.compareUnsigned(a[0], b[0]));
+
+        ByteBuffer index = ByteBuffer.allocate(HEADER_SIZE + records.length * RECORD_SIZE);
+        index.put(MAGIC).put((byte) VERSION).put(new byte[3]).putLong(records.length);
+        for (long[] record : records) {
+            index.putLong(record[0]).putLong(record[1]).putInt((int) record[2]);
+        }
+        return new Built(data.toByteArray(), index.array(), AddressIndex.build(addressRecords));
+    }
+
+    // {source, destination} of an IPv4 pair, or a value above every address for other keys.
+    private static long[] addressOrder(String key) {
+        long[] addresses = AddressIndex.parseKey(key);
+        return addresses != null ? addresses : new long[] { Long.MAX_VALUE, 0 };
+    }
+
+    // FNV-1a over the UTF-8 key, finished with the MurmurHash3 mixer so nearby keys spread out.
+    public static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb93fe53a4e53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    // Reads the record count from the start of an index object and checks its header.
+    public static long recordCount(byte[] head) {
+        version(head);
+        return ByteBuffer.wrap(head).getLong(8);
+    }
+
+    public static int version(byte[] head) {
+        ByteBuffer buffer = ByteBuffer.wrap(head);
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IllegalStateException("Not a key index.");
+        }
+        int version = buffer.get() & 0xff;
+        if (version > VERSION) {
+            throw new IllegalStateException("Unsupported key index version " + version);
+        }
+        return version;
+    }
+
+    // Returns {offset, length} of every data entry whose key hashes to keyHash. prefetched holds
+    // records already read, usually the ones that came with the header, and may be null.
+    public static List<long[]> find(long recordCount, long keyHash, Window prefetched, RecordReader reader) {
+        long lo = 0;
+        long hi = recordCount;
+        long loHash = 0;
+        long hiHash = -1;
+        int probes = 0;
+        Window window = prefetched;
+
+        while (true) {
+            if (window != null && window.size() > 0) {
+                long first = window.hash(0);
+                long last = window.hash(window.size() - 1);
+                if (Long.compareUnsigned(keyHash, first) < 0) {
+                    hi = Math.min(hi, window.first);
+                    hiHash = first;
+                } else if (Long.compareUnsigned(keyHash, last) > 0) {
+                    lo = Math.max(lo, window.end());
+                    loHash = last;
+                } else if (keyHash == first && window.first > lo) {
+                    long from = Math.max(lo, window.first - WINDOW_RECORDS);
+                    window = reader.read(from, (int) (window.end() - from));
+                    continue;
+                } else if (keyHash == last && window.end() < hi) {
+                    window = reader.read(window.first, (int) (Math.min(hi, window.end() + WINDOW_RECORDS) - window.first));
+                    continue;
+                } else {
+                    return window.matches(keyHash);
+                }
+            }
+
+            if (lo >= hi) {
+                return new ArrayList<>();
+            }
+            if (hi - lo <= WINDOW_RECORDS) {
+                window = reader.read(lo, (int) (hi - lo));
+                continue;
+            }
+
+            long span = hi - lo;
+            long guess;
+            if (probes++ < 3) {
+                double low = unsigned(loHash);
+                double fraction = (unsigned(keyHash) - low) / Math.max(1.0, unsigned(hiHash) - low);
+                guess = lo + (long) (Math.min(1.0, Math.max(0.0, fraction)) * span);
+            } else {
+                guess = lo + span / 2;
+            }
+            long radius = Math.min(MAX_WINDOW_RECORDS / 2, Math.max(WINDOW_RECORDS / 2, (long) (4 * Math.sqrt(span))));
+            long from = Math.max(lo, Math.min(guess - radius, hi - 2 * radius));
+            long to = Math.min(hi, from + 2 * radius);
+            window = reader.read(from, (int) (to - from));
+        }
+    }
+
+    private static double unsigned(long value) {
+        return (double) (value >>> 1) * 2.0 + (value & 1);
+    }
+
+    public interface RecordReader {
+
+        Window read(long firstRecord, int records);
+    }
+
+    // Consecutive index records starting at record first.
+    public static final class Window {
+
+        final long first;
+        private final ByteBuffer records;
+
+        public Window(long first, byte[] records, int offset, int length) {
+            this(first, ByteBuffer.wrap(records, offset, length - length % RECORD_SIZE).slice());
+        }
+
+        public Window(long first, ByteBuffer records) {
+            this.first = first;
+            this.records = records;
+        }
+
+        int size() {
+            return records.limit() / RECORD_SIZE;
+        }
+
+        long end() {
+            return first + size();
+        }
+
+        long hash(int record) {
+            return records.getLong(record * RECORD_SIZE);
+        }
+
+        List<long[]> matches(long keyHash) {
+            List<long[]> matches = new ArrayList<>();
+            for (int record = 0; record < size(); record++) {
+                if (hash(record) == keyHash) {
+                    matches.add(new long[] { records.getLong(record * RECORD_SIZE + 8),
+                            records.getInt(record * RECORD_SIZE + 16) });
+                }
+            }
+            return matches;
+        }
+    }
+
+    public static final class Built {
+
+        final byte[] data;
+        final byte[] index;
+        final byte[] addresses;
+
+        Built(byte[] data, byte[] index, byte[] addresses) {
+            this.data = data;
+            this.index = index;
+            this.addresses = addresses;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.ScheduledEvent;
+
+import software.amazon.awssdk.services.s3.S3Client;
+
+// Runs on an EventBridge schedule and merges the batches/ files of the consolidated bucket into
+// tiered files, see BatchCompactor.
+public class BatchCompactionHandler implements RequestHandler<ScheduledEvent, String> {
+
+    private final S3Client s3Client;
+    private final String outputBucket = "s3-consolidated-data-lambda-021095";
+    private final ObjectCodec batchCodec = ObjectCodec.fromName(System.getenv("BATCH_CODEC"));
+    private final int fanIn = intFromEnv("COMPACTION_FAN_IN", 8);
+    private final int threads = intFromEnv("COMPACTION_THREADS", 16);
+    private final int maxMerges = intFromEnv("COMPACTION_MAX_MERGES", 100);
+
+    public BatchCompactionHandler() {
+        this.s3Client = S3Client.builder().build();
+    }
+
+    @Override
+    public String handleRequest(ScheduledEvent event, Context context) {
+        try {
+            BatchCompactor compactor = new BatchCompactor(s3Client, outputBucket, batchCodec, fanIn, threads);
+            int merged = compactor.compact(maxMerges);
+            context.getLogger().log("Merged " + merged + " batch file(s)");
+            return "Compaction completed successfully";
+        } catch (Exception e) {
+            context.getLogger().log("Error compacting batches: " + e.getMessage());
+            throw new RuntimeException("Error compacting batches", e);
+        }
+    }
+
+    private static int intFromEnv(String name, int defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value.trim());
+    }
+}
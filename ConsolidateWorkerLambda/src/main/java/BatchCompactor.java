@@ -0,0 +1,239 @@
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+// Merges the batches/ files written by the consolidate Lambda into size-tiered files. Tier 0 is the
+// batches/ files themselves. Every fanIn files of a tier, oldest first, are merged into one file of
+// the next tier under batches/tier-N/, so after a full pass each tier holds fewer than fanIn files
+// and a reader of batches/ fetches about fanIn files per tier. The inputs of a merge are deleted only
+// after its output is written; a reader that sees both gets the same rows once, because merges and
+// readers drop duplicate rows of a key the same way processRecord does.
+public class BatchCompactor {
+
+    public static final String BATCH_PREFIX = "batches/";
+    public static final String TIER_PREFIX = BATCH_PREFIX + "tier-";
+
+    private final S3Client s3Client;
+    private final String bucket;
+    private final ObjectCodec codec;
+    private final int fanIn;
+    private final int threads;
+
+    public BatchCompactor(S3Client s3Client, String bucket, ObjectCodec codec, int fanIn, int threads) {
+        if (fanIn < 2) {
+            throw new IllegalArgumentException("fanIn must be at least 2");
+        }
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.codec = codec;
+        this.fanIn = fanIn;
+        this.threads = threads;
+    }
+
+    // Runs at most maxMerges merges, lowest tier first, and returns the number of files merged. The
+    // merges of a tier run in parallel; the next tier is listed once they are done, so files merged
+    // up in this pass can be merged again. Every tier up to the highest one is listed, since a tier
+    // whose files were all merged up is empty while the tiers above it still have files.
+    public int compact(int maxMerges) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "batch-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            int mergedFiles = 0;
+            int merges = 0;
+            int topTier = topTier();
+            for (int tier = 0; tier <= topTier && merges < maxMerges; tier++) {
+                List<String> files = listTier(tier);
+
+                List<Future<Integer>> futures = new ArrayList<>();
+                for (int from = 0; from + fanIn <= files.size() && merges < maxMerges; from += fanIn) {
+                    List<String> group = files.subList(from, from + fanIn);
+                    int outputTier = tier + 1;
+                    futures.add(executor.submit(() -> merge(group, outputTier)));
+                    merges++;
+                }
+                for (Future<Integer> future : futures) {
+                    mergedFiles += future.get();
+                }
+                if (!futures.isEmpty()) {
+                    topTier = Math.max(topTier, tier + 1);
+                }
+            }
+            return mergedFiles;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while compacting batches", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error compacting batches: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private int merge(List<String> inputKeys, int outputTier) {
+        HashMap<String, List<List<String>>> merged = new HashMap<>();
+        HashMap<String, Set<List<String>>> seenRows = new HashMap<>();
+        for (String inputKey : inputKeys) {
+            mergeDistinct(merged, seenRows, readBatch(inputKey));
+        }
+        // Address sketches are unioned, so each tier holds one sketch per address, date and direction.
+        merged.replaceAll((key, rows) -> HyperLogLog.isStateKey(key) ? HyperLogLog.union(rows, Collections.emptyList()) : rows);
+
+        String outputKey = String.format("%s%d/%019d-%s.bin", TIER_PREFIX, outputTier, System.currentTimeMillis(),
+                UUID.randomUUID());
+        writeBatch(merged, outputKey);
+        deleteBatches(inputKeys);
+
+        System.out.println("Merged " + inputKeys.size() + " batch file(s) into " + outputKey);
+        return inputKeys.size();
+    }
+
+    // Adds the rows of delta that target does not hold yet. seenRows is filled lazily from target, so
+    // it can start empty for a target that already has rows.
+    static void mergeDistinct(HashMap<String, List<List<String>>> target, HashMap<String, Set<List<String>>> seenRows,
+            HashMap<String, List<List<String>>> delta) {
+        delta.forEach((key, rows) -> {
+            List<List<String>> existingValues = target.computeIfAbsent(key, k -> new ArrayList<>());
+            Set<List<String>> seen = seenRows.computeIfAbsent(key, k -> new HashSet<>(existingValues));
+            for (List<String> row : rows) {
+                if (seen.add(row)) {
+                    existingValues.add(row);
+                }
+            }
+        });
+    }
+
+    // The highest N of the batches/tier-N/ prefixes, 0 when there are none.
+    private int topTier() {
+        ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                .bucket(bucket)
+                .prefix(TIER_PREFIX)
+                .delimiter("/")
+                .build();
+
+        int topTier = 0;
+        ListObjectsV2Response listResponse;
+        do {
+            listResponse = s3Client.listObjectsV2(listRequest);
+            for (CommonPrefix commonPrefix : listResponse.commonPrefixes()) {
+                String tier = commonPrefix.prefix().substring(TIER_PREFIX.length(), commonPrefix.prefix().length() - 1);
+                try {
+                    topTier = Math.max(topTier, Integer.parseInt(tier));
+                } catch (NumberFormatException e) {
+                    // Not a tier this compactor wrote.
+                }
+            }
+            listRequest = listRequest.toBuilder()
+                    .continuationToken(listResponse.nextContinuationToken())
+                    .build();
+        } while (listResponse.isTruncated());
+        return topTier;
+    }
+
+    // Tier 0 is every object directly under batches/, tier N every object under batches/tier-N/,
+    // oldest first.
+    private List<String> listTier(int tier) {
+        ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                .bucket(bucket)
+                .prefix(tier == 0 ? BATCH_PREFIX : TIER_PREFIX + tier + "/")
+                .delimiter("/")
+                .build();
+
+        List<S3Object> objects = new ArrayList<>();
+        ListObjectsV2Response listResponse;
+        do {
+            listResponse = s3Client.listObjectsV2(listRequest);
+            objects.addAll(listResponse.contents());
+            listRequest = listRequest.toBuilder()
+                    .continuationToken(listResponse.nextContinuationToken())
+                    .build();
+        } while (listResponse.isTruncated());
+
+        objects.sort(Comparator.comparing(S3Object::lastModified).thenComparing(S3Object::key));
+        List<String> keys = new ArrayList<>();
+        for (S3Object s3Object : objects) {
+            keys.add(s3Object.key());
+        }
+        return keys;
+    }
+
+    private HashMap<String, List<List<String>>> readBatch(String key) {
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .build();
+
+        try (ResponseInputStream<GetObjectResponse> inputStream = s3Client.getObject(getObjectRequest)) {
+            ObjectCodec objectCodec = ObjectCodec.fromMetadata(inputStream.response().metadata());
+            return ConsolidatedStateFormat.read(objectCodec.decode(inputStream));
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading " + key + " from " + bucket, e);
+        }
+    }
+
+    private void writeBatch(HashMap<String, List<List<String>>> map, String key) {
+        try {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            try (OutputStream encodedStream = codec.encode(byteArrayOutputStream)) {
+                ConsolidatedStateFormat.write(map, encodedStream);
+            }
+
+            PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .metadata(codec.metadata())
+                    .build();
+
+            s3Client.putObject(putObjectRequest, RequestBody.fromBytes(byteArrayOutputStream.toByteArray()));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to serialize map", e);
+        }
+    }
+
+    private void deleteBatches(List<String> keys) {
+        List<ObjectIdentifier> objects = new ArrayList<>();
+        for (String key : keys) {
+            objects.add(ObjectIdentifier.builder().key(key).build());
+        }
+
+        try {
+            s3Client.deleteObjects(DeleteObjectsRequest.builder()
+                    .bucket(bucket)
+                    .delete(Delete.builder().objects(objects).quiet(true).build())
+                    .build());
+        } catch (S3Exception e) {
+            System.err.println("Error deleting merged batch files, they will be merged again later: " + e.getMessage());
+        }
+    }
+}
@@ -4,10 +4,13 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import com.opencsv.CSVReader;
@@ -30,6 +33,7 @@ public class ConsolidateWorker {
     private final S3Client s3Client;
     private final String outputBucket;
     private final String inputBucket;
+    private final ObjectCodec batchCodec = ObjectCodec.fromName(System.getenv("BATCH_CODEC"));
 
     public ConsolidateWorker(String inputBucket, String outputBucket) {
         this.s3Client = S3Client.builder().build();
@@ -45,7 +49,7 @@ public class ConsolidateWorker {
 
     public void run(String sourceBucket, String sourceKey) {
         try {
-            String outputKey = String.format("batches/%s_%s.ser",
+            String outputKey = String.format("batches/%s_%s.bin",
                     UUID.randomUUID().toString(),
                     sourceKey.replace('/', '_'));
 
@@ -57,7 +61,8 @@ public class ConsolidateWorker {
             HashMap<String, List<List<String>>> batchMap = new HashMap<>();
 
             try (ResponseInputStream<GetObjectResponse> s3ObjectResponse = s3Client.getObject(request)) {
-                processCsv(s3ObjectResponse, batchMap);
+                ObjectCodec summaryCodec = ObjectCodec.fromMetadata(s3ObjectResponse.response().metadata());
+                readFile(summaryCodec.decode(s3ObjectResponse), sourceKey, batchMap);
             }
 
             WriteNewhashmapToS3(batchMap, outputBucket, outputKey);
@@ -78,8 +83,11 @@ public class ConsolidateWorker {
             do {
                 listResponse = s3Client.listObjectsV2(listRequest);
                 for (S3Object s3Object : listResponse.contents()) {
-                    if (s3Object.key().endsWith(".csv")) { 
+                    if (s3Object.key().endsWith(".csv") || AddressSketches.isSketchFile(s3Object.key())) {
                         processFile(s3Object.key());
+                    } else if (HeavyHitters.isReport(s3Object.key())) {
+                        new HeavyHitterStore(s3Client, outputBucket).merge(inputBucket, s3Object.key());
+                        deleteS3Object(inputBucket, s3Object.key());
                     }
                 }
                 listRequest = ListObjectsV2Request.builder()
@@ -95,7 +103,7 @@ public class ConsolidateWorker {
 
     private void processFile(String sourceKey) {
         try {
-            String outputKey = String.format("batches/%s_%s.ser",
+            String outputKey = String.format("batches/%s_%s.bin",
                     UUID.randomUUID().toString(),
                     sourceKey.replace('/', '_'));
 
@@ -107,7 +115,8 @@ public class ConsolidateWorker {
             HashMap<String, List<List<String>>> batchMap = new HashMap<>();
 
             try (ResponseInputStream<GetObjectResponse> s3ObjectResponse = s3Client.getObject(request)) {
-                processCsv(s3ObjectResponse, batchMap);
+                ObjectCodec summaryCodec = ObjectCodec.fromMetadata(s3ObjectResponse.response().metadata());
+                readFile(summaryCodec.decode(s3ObjectResponse), sourceKey, batchMap);
             }
 
             WriteNewhashmapToS3(batchMap, outputBucket, outputKey);
@@ -120,19 +129,33 @@ public class ConsolidateWorker {
         }
     }
 
+    // Address sketch files, see AddressSketches, are read as fan:<address> rows instead of summary rows.
+    private void readFile(InputStream inputStream, String sourceKey, HashMap<String, List<List<String>>> batchMap)
+            throws IOException, CsvException {
+        if (AddressSketches.isSketchFile(sourceKey)) {
+            batchMap.putAll(AddressSketches.read(new InputStreamReader(inputStream, StandardCharsets.UTF_8)));
+            return;
+        }
+        processCsv(inputStream, batchMap);
+    }
+
     public void processCsv(InputStream inputStream, HashMap<String, List<List<String>>> batchMap)
             throws IOException, CsvException {
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream)); CSVReader csvReader = new CSVReader(reader)) {
 
+            // Rows already added per key, so a duplicate is found with one hash lookup instead of a scan
+            // of the key's rows.
+            HashMap<String, Set<List<String>>> seenRows = new HashMap<>();
             List<String[]> records = csvReader.readAll();
             for (int i = 1; i < records.size(); i++) {
                 String[] record = records.get(i);
-                processRecord(record, batchMap);
+                processRecord(record, batchMap, seenRows);
             }
         }
     }
 
-    private void processRecord(String[] record, HashMap<String, List<List<String>>> ConsolidateMap) {
+    private void processRecord(String[] record, HashMap<String, List<List<String>>> ConsolidateMap,
+            HashMap<String, Set<List<String>>> seenRows) {
         String sourceIp = record[1];
         String destIp = record[2];
 
@@ -152,13 +175,8 @@ public class ConsolidateWorker {
         newValue.add(flowDuration);
         newValue.add(forwardPackets);
 
-        boolean valueExists = existingValues.stream().anyMatch(existing
-                -> existing.get(0).equals(date)
-                && existing.get(1).equals(flowDuration)
-                && existing.get(2).equals(forwardPackets)
-        );
-
-        if (!valueExists) {
+        Set<List<String>> seen = seenRows.computeIfAbsent(key, k -> new HashSet<>(existingValues));
+        if (seen.add(newValue)) {
             existingValues.add(newValue);
         }
     }
@@ -178,16 +196,16 @@ public class ConsolidateWorker {
     public void WriteNewhashmapToS3(HashMap<String, List<List<String>>> map, String bucketName, String outputKey) {
         try {
             ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
-
-            objectOutputStream.writeObject(map);
-            objectOutputStream.close();
+            try (OutputStream encodedStream = batchCodec.encode(byteArrayOutputStream)) {
+                ConsolidatedStateFormat.write(map, encodedStream);
+            }
 
             byte[] bytes = byteArrayOutputStream.toByteArray();
 
             PutObjectRequest putObjectRequest = PutObjectRequest.builder()
                     .bucket(bucketName)
                     .key(outputKey)
+                    .metadata(batchCodec.metadata())
                     .build();
 
             s3Client.putObject(putObjectRequest, RequestBody.fromBytes(bytes));
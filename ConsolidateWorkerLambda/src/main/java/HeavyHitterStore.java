@@ -0,0 +1,165 @@
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+// Merges the heavy-hitter reports the summarize stage writes next to each summary into one report
+// per traffic date, heavy_hitters/<date>.csv in the consolidated bucket. Rows of reports from before
+// there were dates go to heavy_hitters.csv at the root. Each day report is written back with a put
+// conditional on the ETag it was read at (If-None-Match: * for the first one), so consolidators
+// running side by side merge again instead of dropping each other's files.
+//
+// Each day report also lists the file reports merged into it, as rows
+//
+//   date,merged,,,<epoch millis>,0,<bucket>/<report key>
+//
+// which HeavyHitters.read skips. A retry after a failure part way through the dates skips every day
+// that already lists the file report, whatever was merged into it since. Entries are dropped after
+// MERGED_RETENTION, the longest an SQS message can wait for its retry.
+public class HeavyHitterStore {
+
+    public static final String REPORT_KEY = "heavy_hitters.csv";
+    public static final String REPORT_PREFIX = "heavy_hitters/";
+
+    private static final String MERGED = "merged";
+    private static final long MERGED_RETENTION = TimeUnit.DAYS.toMillis(14);
+
+    private final S3Client s3Client;
+    private final String bucket;
+
+    public HeavyHitterStore(S3Client s3Client, String bucket) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+    }
+
+    public static String reportKey(String date) {
+        return date.isEmpty() ? REPORT_KEY : REPORT_PREFIX + date + ".csv";
+    }
+
+    // Returns false when the file report is gone, because an earlier attempt merged and deleted it.
+    public boolean merge(String sourceBucket, String reportKey) {
+        HeavyHitters fileReport;
+        try {
+            fileReport = read(sourceBucket, reportKey).report;
+        } catch (NoSuchKeyException e) {
+            System.out.println("Skipping " + reportKey + ", it was already merged.");
+            return false;
+        }
+
+        for (String date : fileReport.dates()) {
+            mergeDay(fileReport.day(date), date, sourceBucket + "/" + reportKey);
+        }
+        return true;
+    }
+
+    private void mergeDay(HeavyHitters dayReport, String date, String reportKey) {
+        String dayKey = reportKey(date);
+        while (true) {
+            Version current;
+            try {
+                current = read(bucket, dayKey);
+                if (current.merged.containsKey(reportKey)) {
+                    System.out.println("Skipping " + dayKey + ", " + reportKey + " was already merged into it.");
+                    return;
+                }
+                current.report.merge(dayReport);
+            } catch (NoSuchKeyException e) {
+                current = new Version(dayReport, null, new LinkedHashMap<>());
+            }
+
+            long now = System.currentTimeMillis();
+            current.merged.values().removeIf(mergedAt -> mergedAt < now - MERGED_RETENTION);
+            current.merged.put(reportKey, now);
+            try {
+                write(dayKey, date, current);
+                System.out.println("Merged " + reportKey + " into " + dayKey);
+                return;
+            } catch (S3Exception e) {
+                if (e.statusCode() != 412 && e.statusCode() != 409) {
+                    throw e;
+                }
+                System.out.println(dayKey + " was rewritten while merging " + reportKey + ", merging again.");
+            }
+        }
+    }
+
+    private Version read(String sourceBucket, String key) {
+        GetObjectRequest getRequest = GetObjectRequest.builder()
+                .bucket(sourceBucket)
+                .key(key)
+                .build();
+
+        try (ResponseInputStream<GetObjectResponse> inputStream = s3Client.getObject(getRequest)) {
+            String text = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+            HeavyHitters report = HeavyHitters.read(new StringReader(text));
+            return new Version(report, inputStream.response().eTag(), readMerged(text));
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading heavy-hitter report " + key, e);
+        }
+    }
+
+    // The merged rows of a report, report key -> epoch millis. Rows that do not parse are skipped.
+    private static LinkedHashMap<String, Long> readMerged(String text) throws IOException {
+        LinkedHashMap<String, Long> merged = new LinkedHashMap<>();
+        BufferedReader reader = new BufferedReader(new StringReader(text));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split(",", 7);
+            if (fields.length == 7 && fields[1].equals(MERGED)) {
+                try {
+                    merged.put(fields[6], Long.parseLong(fields[4]));
+                } catch (NumberFormatException e) {
+                    // Not a merged row.
+                }
+            }
+        }
+        return merged;
+    }
+
+    private void write(String key, String date, Version version) {
+        StringBuilder text = new StringBuilder();
+        try {
+            version.report.write(text);
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing heavy-hitter report", e);
+        }
+        version.merged.forEach((reportKey, mergedAt) -> text.append(date).append(',').append(MERGED).append(",,,")
+                .append(mergedAt).append(",0,").append(reportKey).append('\n'));
+
+        String condition = version.eTag == null ? "If-None-Match" : "If-Match";
+        String value = version.eTag == null ? "*" : version.eTag;
+        PutObjectRequest putRequest = PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .contentType("text/csv")
+                .overrideConfiguration(config -> config.putHeader(condition, value))
+                .build();
+
+        s3Client.putObject(putRequest, RequestBody.fromString(text.toString(), StandardCharsets.UTF_8));
+    }
+
+    private static class Version {
+
+        final HeavyHitters report;
+        final String eTag;
+        final LinkedHashMap<String, Long> merged;
+
+        Version(HeavyHitters report, String eTag, LinkedHashMap<String, Long> merged) {
+            this.report = report;
+            this.eTag = eTag;
+            this.merged = merged;
+        }
+    }
+}
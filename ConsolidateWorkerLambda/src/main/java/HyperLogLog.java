@@ -0,0 +1,242 @@
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// A HyperLogLog sketch of a set of addresses: 2^P registers, each the longest run of leading zeros
+// seen among the hashes that fall into it, which estimates the number of distinct addresses within
+// about 1.04 / sqrt(2^P), 3%, at a fixed cost of 2^P bytes. Sketches of small sets are kept sparse,
+// as sorted register << 6 | rank values, until they would take a quarter of the dense size. The
+// union of two sketches is their register-wise maximum, so sketches of the same address and day from
+// any number of files merge in any order, and merging one twice changes nothing.
+//
+// In the consolidated state the sketches of an address live under the key fan:<address>, as rows
+// date, direction, sketch, where direction is out for the distinct destinations of the address as a
+// source and in for the distinct sources of it as a destination.
+public final class HyperLogLog {
+
+    public static final String STATE_KEY_PREFIX = "fan:";
+    public static final String FAN_OUT = "out";
+    public static final String FAN_IN = "in";
+
+    private static final int P = 10;
+    private static final int REGISTERS = 1 << P;
+    private static final int SPARSE_LIMIT = REGISTERS / 4;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+    private static final byte VERSION = 1;
+    private static final byte SPARSE = 0;
+    private static final byte DENSE = 1;
+
+    private int[] sparse = new int[4];
+    private int sparseSize;
+    private byte[] registers;
+
+    public static boolean isStateKey(String key) {
+        return key.startsWith(STATE_KEY_PREFIX);
+    }
+
+    public static String stateKey(String address) {
+        return STATE_KEY_PREFIX + address;
+    }
+
+    public void add(String value) {
+        long hash = hash(value);
+        int register = (int) (hash >>> (64 - P));
+        int rank = Long.numberOfLeadingZeros(hash << P | 1L << (P - 1)) + 1;
+        set(register, rank);
+    }
+
+    public void merge(HyperLogLog other) {
+        if (other.registers != null) {
+            toDense();
+            for (int register = 0; register < REGISTERS; register++) {
+                registers[register] = (byte) Math.max(registers[register], other.registers[register]);
+            }
+            return;
+        }
+        for (int i = 0; i < other.sparseSize; i++) {
+            set(other.sparse[i] >>> 6, other.sparse[i] & 0x3f);
+        }
+    }
+
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        if (registers == null) {
+            zeros = REGISTERS - sparseSize;
+            sum = zeros;
+            for (int i = 0; i < sparseSize; i++) {
+                sum += 1.0 / (1L << (sparse[i] & 0x3f));
+            }
+        } else {
+            for (byte rank : registers) {
+                sum += 1.0 / (1L << rank);
+                if (rank == 0) {
+                    zeros++;
+                }
+            }
+        }
+
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    // version, P, then SPARSE and two bytes per register set, or DENSE and every register; in base64,
+    // so it sits in a CSV field or a state row.
+    public String encode() {
+        ByteBuffer bytes;
+        if (registers == null) {
+            bytes = ByteBuffer.allocate(3 + 2 * sparseSize).put(VERSION).put((byte) P).put(SPARSE);
+            for (int i = 0; i < sparseSize; i++) {
+                bytes.putShort((short) sparse[i]);
+            }
+        } else {
+            bytes = ByteBuffer.allocate(3 + REGISTERS).put(VERSION).put((byte) P).put(DENSE).put(registers);
+        }
+        return Base64.getEncoder().encodeToString(bytes.array());
+    }
+
+    public static HyperLogLog decode(String encoded) {
+        ByteBuffer bytes = ByteBuffer.wrap(Base64.getDecoder().decode(encoded));
+        if (bytes.remaining() < 3 || bytes.get() != VERSION || bytes.get() != P) {
+            throw new IllegalArgumentException("Not a HyperLogLog sketch of precision " + P);
+        }
+
+        HyperLogLog sketch = new HyperLogLog();
+        byte kind = bytes.get();
+        if (kind == DENSE && bytes.remaining() == REGISTERS) {
+            sketch.registers = new byte[REGISTERS];
+            bytes.get(sketch.registers);
+        } else if (kind == SPARSE && bytes.remaining() % 2 == 0) {
+            while (bytes.hasRemaining()) {
+                int entry = bytes.getShort() & 0xffff;
+                sketch.set(entry >>> 6, entry & 0x3f);
+            }
+        } else {
+            throw new IllegalArgumentException("Corrupt HyperLogLog sketch");
+        }
+        return sketch;
+    }
+
+    // Unions the sketch rows that share a date and direction into one row, in date order. Other
+    // rows are kept as they are.
+    public static List<List<String>> union(List<List<String>> rows, List<List<String>> more) {
+        TreeMap<List<String>, HyperLogLog> sketches = new TreeMap<>(
+                Comparator.<List<String>, String>comparing(key -> key.get(0)).thenComparing(key -> key.get(1)));
+        List<List<String>> otherRows = new ArrayList<>();
+        for (List<List<String>> list : Arrays.asList(rows, more)) {
+            for (List<String> row : list) {
+                HyperLogLog sketch = row.size() == 3 ? decodeOrNull(row.get(2)) : null;
+                if (sketch == null) {
+                    otherRows.add(row);
+                    continue;
+                }
+                HyperLogLog union = sketches.putIfAbsent(row.subList(0, 2), sketch);
+                if (union != null) {
+                    union.merge(sketch);
+                }
+            }
+        }
+
+        List<List<String>> union = new ArrayList<>(sketches.size() + otherRows.size());
+        for (Map.Entry<List<String>, HyperLogLog> sketch : sketches.entrySet()) {
+            union.add(new ArrayList<>(Arrays.asList(sketch.getKey().get(0), sketch.getKey().get(1), sketch.getValue().encode())));
+        }
+        union.addAll(otherRows);
+        return union;
+    }
+
+    // One row date, fan-out, fan-in per date, from the sketch rows of a fan:<address> key.
+    public static List<List<String>> fanRows(List<List<String>> rows) {
+        TreeMap<String, long[]> fans = new TreeMap<>();
+        for (List<String> row : union(rows, List.of())) {
+            int direction = row.size() == 3 ? Arrays.asList(FAN_OUT, FAN_IN).indexOf(row.get(1)) : -1;
+            if (direction >= 0) {
+                fans.computeIfAbsent(row.get(0), date -> new long[2])[direction] = decode(row.get(2)).estimate();
+            }
+        }
+
+        List<List<String>> fanRows = new ArrayList<>(fans.size());
+        for (Map.Entry<String, long[]> fan : fans.entrySet()) {
+            fanRows.add(Arrays.asList(fan.getKey(), Long.toString(fan.getValue()[0]), Long.toString(fan.getValue()[1])));
+        }
+        return fanRows;
+    }
+
+    private static HyperLogLog decodeOrNull(String encoded) {
+        try {
+            return decode(encoded);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void set(int register, int rank) {
+        if (registers != null) {
+            registers[register] = (byte) Math.max(registers[register], rank);
+            return;
+        }
+
+        int low = 0;
+        int high = sparseSize - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int current = sparse[middle] >>> 6;
+            if (current < register) {
+                low = middle + 1;
+            } else if (current > register) {
+                high = middle - 1;
+            } else {
+                sparse[middle] = register << 6 | Math.max(sparse[middle] & 0x3f, rank);
+                return;
+            }
+        }
+
+        if (sparseSize == SPARSE_LIMIT) {
+            toDense();
+            registers[register] = (byte) rank;
+            return;
+        }
+        if (sparseSize == sparse.length) {
+            sparse = Arrays.copyOf(sparse, sparse.length * 2);
+        }
+        System.arraycopy(sparse, low, sparse, low + 1, sparseSize - low);
+        sparse[low] = register << 6 | rank;
+        sparseSize++;
+    }
+
+    private void toDense() {
+        if (registers != null) {
+            return;
+        }
+        registers = new byte[REGISTERS];
+        for (int i = 0; i < sparseSize; i++) {
+            registers[sparse[i] >>> 6] = (byte) (sparse[i] & 0x3f);
+        }
+        sparse = null;
+        sparseSize = 0;
+    }
+
+    // FNV-1a over the characters, then the MurmurHash3 finalizer to spread the bits.
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -23,7 +23,13 @@ public class S3EventHandler implements RequestHandler<S3Event, String> {
                 String bucketName = record.getS3().getBucket().getName();
                 String fileName = record.getS3().getObject().getKey();
 
-                if (fileName.endsWith(".csv")) {
+                if (HeavyHitters.isReport(fileName)) {
+                    context.getLogger().log("Merging heavy-hitter report: " + fileName);
+
+                    new HeavyHitterStore(s3Client, outputBucket).merge(bucketName, fileName);
+
+                    deleteS3Object(bucketName, fileName);
+                } else if (fileName.endsWith(".csv") || AddressSketches.isSketchFile(fileName)) {
                     context.getLogger().log("Processing file: " + fileName);
 
                     ConsolidateWorker worker = new ConsolidateWorker(outputBucket);
@@ -0,0 +1,216 @@
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Exports many IP pairs in one run. The shards holding the requested pairs are read one after
+// another, the next one downloading while the pairs of the current one are computed on a
+// ForkJoinPool. Each pair's result goes to the output as soon as it is computed, either as one row per
+// date in a single CSV or as one data_<src>:<dst>.csv per pair in a directory. query() exports the
+// pairs of an address range instead, as the address index of each shard returns them.
+public class BatchExport {
+
+    public static final String ALL_KEYS = "all";
+
+    private static final int LEAF_PAIRS = 64;
+
+    private final ShardedStateStore stateStore;
+    private final int parallelism;
+    private final AtomicLong exported = new AtomicLong();
+
+    public BatchExport(ShardedStateStore stateStore, int parallelism) {
+        this.stateStore = stateStore;
+        this.parallelism = parallelism;
+    }
+
+    // keys null exports every pair, leaving out the address sketches. Returns the number of pairs written.
+    public long run(Set<String> keys, Path output) {
+        TreeMap<Integer, List<String>> keysByShard = new TreeMap<>();
+        if (keys == null) {
+            for (int shard = 0; shard < stateStore.shardCount(); shard++) {
+                keysByShard.put(shard, null);
+            }
+        } else {
+            for (String key : keys) {
+                keysByShard.computeIfAbsent(stateStore.shardOf(key), shard -> new ArrayList<>()).add(key);
+            }
+        }
+
+        ExecutorService reader = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "export-shard-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (Sink sink = openSink(output)) {
+            List<Integer> shards = new ArrayList<>(keysByShard.keySet());
+            CompletableFuture<HashMap<String, List<List<String>>>> next = shards.isEmpty() ? null
+                    : CompletableFuture.supplyAsync(() -> stateStore.readShard(shards.get(0)), reader);
+            for (int i = 0; i < shards.size(); i++) {
+                HashMap<String, List<List<String>>> map = next.join();
+                if (i + 1 < shards.size()) {
+                    int nextShard = shards.get(i + 1);
+                    next = CompletableFuture.supplyAsync(() -> stateStore.readShard(nextShard), reader);
+                }
+
+                List<String> shardKeys = keysByShard.get(shards.get(i));
+                List<String> present = new ArrayList<>();
+                for (String key : shardKeys == null ? map.keySet() : shardKeys) {
+                    if (shardKeys == null && HyperLogLog.isStateKey(key)) {
+                        continue;
+                    }
+                    if (map.containsKey(key)) {
+                        present.add(key);
+                    } else {
+                        System.out.println("The key doesn't exist in the HashMap: " + key);
+                    }
+                }
+                pool.invoke(new ExportTask(map, present, 0, present.size(), sink));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing the export to " + output, e);
+        } finally {
+            reader.shutdownNow();
+            pool.shutdown();
+        }
+        return exported.get();
+    }
+
+    // Returns the number of pairs written.
+    public long query(AddressIndex.Range sources, AddressIndex.Range destinations, Path output) {
+        try (Sink sink = openSink(output)) {
+            stateStore.query(sources, destinations, (key, rows) -> export(sink, key, rows));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing the export to " + output, e);
+        }
+        return exported.get();
+    }
+
+    private static Sink openSink(Path output) throws IOException {
+        return Files.isDirectory(output) ? new DirectorySink(output) : new FileSink(output);
+    }
+
+    private void export(Sink sink, String key, List<List<String>> rows) {
+        int comma = key.indexOf(',');
+        String sourceIp = comma < 0 ? key : key.substring(0, comma);
+        String destinationIp = comma < 0 ? "" : key.substring(comma + 1);
+        KeyStatistics statistics = KeyStatistics.of(rows);
+        try {
+            sink.write(sourceIp, destinationIp, statistics.dailyRows(), statistics.meanAndVariance());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        exported.incrementAndGet();
+    }
+
+    private class ExportTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final HashMap<String, List<List<String>>> map;
+        private final List<String> keys;
+        private final int from;
+        private final int to;
+        private final Sink sink;
+
+        ExportTask(HashMap<String, List<List<String>>> map, List<String> keys, int from, int to, Sink sink) {
+            this.map = map;
+            this.keys = keys;
+            this.from = from;
+            this.to = to;
+            this.sink = sink;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAF_PAIRS) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ExportTask(map, keys, from, middle, sink), new ExportTask(map, keys, middle, to, sink));
+                return;
+            }
+
+            for (int i = from; i < to; i++) {
+                export(sink, keys.get(i), map.get(keys.get(i)));
+            }
+        }
+    }
+
+    private interface Sink extends AutoCloseable {
+
+        void write(String sourceIp, String destinationIp, List<List<String>> data, List<Double> meanAndVariance)
+                throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    // One row per pair and date, with the pair's statistics repeated on each row.
+    private static class FileSink implements Sink {
+
+        private final BufferedWriter writer;
+
+        FileSink(Path file) throws IOException {
+            this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+            writer.write("Source IP,Destination IP,Date,TotalFlowDuration,TotalPacketsForward,Mean TotalFlowDuration,"
+                    + "Standard Deviation TotalFlowDuration,Mean TotalPacketsForward,Standard Deviation TotalPacketsForward\n");
+        }
+
+        @Override
+        public void write(String sourceIp, String destinationIp, List<List<String>> data, List<Double> meanAndVariance)
+                throws IOException {
+            String statistics = meanAndVariance.get(0) + "," + meanAndVariance.get(1) + "," + meanAndVariance.get(2)
+                    + "," + meanAndVariance.get(3);
+            StringBuilder block = new StringBuilder();
+            for (List<String> row : data) {
+                block.append(sourceIp).append(',').append(destinationIp).append(',').append(String.join(",", row))
+                        .append(',').append(statistics).append('\n');
+            }
+            synchronized (writer) {
+                writer.write(block.toString());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    // The same data_<src>:<dst>.csv files as the interactive client.
+    private static class DirectorySink implements Sink {
+
+        private final Path directory;
+
+        DirectorySink(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public void write(String sourceIp, String destinationIp, List<List<String>> data, List<Double> meanAndVariance)
+                throws IOException {
+            Path file = directory.resolve("data_" + sourceIp + ":" + destinationIp + ".csv");
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                ExportClientEC2.writeCsv(writer, data, meanAndVariance, sourceIp, destinationIp);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
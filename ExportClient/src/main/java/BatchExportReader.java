@@ -0,0 +1,228 @@
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+// Reads the Lambda consolidated data, which is spread over the batches/ files and the tiered files
+// the batch compaction writes below them. Files are downloaded on a fixed number of threads and
+// scanned entry by entry; a key lookup keeps only that key's rows. Rows found in more than one file
+// are returned once, as the compaction does, so a file that was merged but not deleted yet is
+// harmless. A file the compaction deleted after it was listed has its rows in a merged file that may
+// have been written after the listing, so when a file is gone the prefix is listed again and the
+// files not read yet are read as well, until a pass finds every file it lists.
+//
+// With a cache directory, each file is kept there decoded, under its key and ETag. Batch files are
+// never rewritten, so the listing alone tells which copies are current, and copies of files the
+// compaction deleted are removed after each scan.
+public class BatchExportReader {
+
+    public static final String BATCH_PREFIX = "batches/";
+
+    private final S3Client s3Client;
+    private final String bucket;
+    private final ExecutorService executor;
+    private final Path cacheDirectory;
+
+    public BatchExportReader(S3Client s3Client, String bucket, int threads) {
+        this(s3Client, bucket, threads, null);
+    }
+
+    public BatchExportReader(S3Client s3Client, String bucket, int threads, Path cacheDirectory) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.cacheDirectory = cacheDirectory == null ? null : cacheDirectory.resolve(bucket);
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "batch-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Returns null when no file holds the key.
+    public List<List<String>> read(String key) {
+        HashMap<String, List<List<String>>> merged = scan(key);
+        return merged.get(key);
+    }
+
+    public HashMap<String, List<List<String>>> read() {
+        return scan(null);
+    }
+
+    private HashMap<String, List<List<String>>> scan(String key) {
+        HashMap<String, List<List<String>>> merged = new HashMap<>();
+        HashMap<String, Set<List<String>>> seenRows = new HashMap<>();
+        Set<String> readKeys = new HashSet<>();
+        Set<Path> cachedFiles = new HashSet<>();
+        boolean missed = true;
+        while (missed) {
+            missed = false;
+            cachedFiles.clear();
+            List<Future<HashMap<String, List<List<String>>>>> futures = new ArrayList<>();
+            for (S3Object batch : listBatches()) {
+                Path cachedFile = cacheDirectory == null ? null : cachedFile(batch);
+                if (cachedFile != null) {
+                    cachedFiles.add(cachedFile);
+                }
+                if (!readKeys.add(batch.key())) {
+                    continue;
+                }
+                if (cachedFile != null) {
+                    futures.add(executor.submit(() -> readCachedBatch(batch.key(), cachedFile, key)));
+                } else {
+                    futures.add(executor.submit(() -> readBatch(batch.key(), key)));
+                }
+            }
+
+            try {
+                for (Future<HashMap<String, List<List<String>>>> future : futures) {
+                    HashMap<String, List<List<String>>> rows = future.get();
+                    if (rows == null) {
+                        missed = true;
+                    } else {
+                        mergeDistinct(merged, seenRows, rows);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while reading batches", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Error reading batches: " + e.getCause().getMessage(), e.getCause());
+            }
+            if (missed) {
+                System.out.println("Listing " + BATCH_PREFIX + " again for the files that replaced those compacted while reading.");
+            }
+        }
+
+        if (cacheDirectory != null) {
+            pruneCache(cachedFiles);
+        }
+        return merged;
+    }
+
+    private HashMap<String, List<List<String>>> readCachedBatch(String batchKey, Path cachedFile, String key)
+            throws IOException {
+        if (!Files.exists(cachedFile)) {
+            Path download = cachedFile.resolveSibling(cachedFile.getFileName() + "." + UUID.randomUUID() + ".tmp");
+            Files.createDirectories(cachedFile.getParent());
+            GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(batchKey)
+                    .build();
+
+            try (ResponseInputStream<GetObjectResponse> inputStream = s3Client.getObject(getObjectRequest)) {
+                Files.copy(ObjectCodec.fromMetadata(inputStream.response().metadata()).decode(inputStream), download);
+                Files.move(download, cachedFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchKeyException e) {
+                System.out.println("Skipping " + batchKey + ", it was compacted while reading.");
+                return null;
+            } finally {
+                Files.deleteIfExists(download);
+            }
+        }
+
+        try (InputStream inputStream = Files.newInputStream(cachedFile)) {
+            return scanEntries(inputStream, key);
+        }
+    }
+
+    // Returns null for a file the compaction deleted after it was listed.
+    private HashMap<String, List<List<String>>> readBatch(String batchKey, String key) throws IOException {
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(batchKey)
+                .build();
+
+        try (ResponseInputStream<GetObjectResponse> inputStream = s3Client.getObject(getObjectRequest)) {
+            return scanEntries(ObjectCodec.fromMetadata(inputStream.response().metadata()).decode(inputStream), key);
+        } catch (NoSuchKeyException e) {
+            System.out.println("Skipping " + batchKey + ", it was compacted while reading.");
+            return null;
+        }
+    }
+
+    private static HashMap<String, List<List<String>>> scanEntries(InputStream inputStream, String key) throws IOException {
+        HashMap<String, List<List<String>>> map = new HashMap<>();
+        try (ConsolidatedStateFormat.Reader reader = ConsolidatedStateFormat.open(inputStream)) {
+            while (reader.next()) {
+                if (key == null || key.equals(reader.key())) {
+                    map.put(reader.key(), reader.rows());
+                }
+            }
+        }
+        return map;
+    }
+
+    private Path cachedFile(S3Object batch) {
+        String version = batch.eTag() == null ? "" : batch.eTag().replaceAll("[^A-Za-z0-9]", "");
+        return cacheDirectory.resolve(batch.key() + "." + version + ".cstb");
+    }
+
+    private void pruneCache(Set<Path> current) {
+        if (!Files.isDirectory(cacheDirectory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(cacheDirectory)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                if (!current.contains(file) && file.toString().endsWith(".cstb")) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error pruning the batch cache in " + cacheDirectory + ": " + e.getMessage());
+        }
+    }
+
+    private List<S3Object> listBatches() {
+        List<S3Object> batches = new ArrayList<>();
+        ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                .bucket(bucket)
+                .prefix(BATCH_PREFIX)
+                .build();
+
+        ListObjectsV2Response listResponse;
+        do {
+            listResponse = s3Client.listObjectsV2(listRequest);
+            batches.addAll(listResponse.contents());
+            listRequest = listRequest.toBuilder()
+                    .continuationToken(listResponse.nextContinuationToken())
+                    .build();
+        } while (listResponse.isTruncated());
+
+        return batches;
+    }
+
+    private static void mergeDistinct(HashMap<String, List<List<String>>> target,
+            HashMap<String, Set<List<String>>> seenRows, HashMap<String, List<List<String>>> delta) {
+        delta.forEach((key, rows) -> {
+            List<List<String>> existingValues = target.computeIfAbsent(key, k -> new ArrayList<>());
+            Set<List<String>> seen = seenRows.computeIfAbsent(key, k -> new HashSet<>(existingValues));
+            for (List<String> row : rows) {
+                if (seen.add(row)) {
+                    existingValues.add(row);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,359 @@
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Binary layout, all integers as LEB128 varints (signed ones zigzag encoded):
+//
+//   "CSTB" version
+//   addressCount, address...              every IP that appears in a key, UTF-8
+//   entryCount
+//   entry: sourceIndex, destinationIndex + 1, rowCount, row...
+//   row:   flags, date, duration, packets
+//
+// A key without a comma is stored as its source index with destination 0. The flags mark the
+// fields that are not canonical ISO dates or longs; those are written as UTF-8 strings instead, so
+// every map round-trips exactly. Streams that start with the Java serialization magic are read as
+// the legacy hashmap.ser format.
+public final class ConsolidatedStateFormat {
+
+    public static final int VERSION = 1;
+
+    private static final byte[] MAGIC = { 'C', 'S', 'T', 'B' };
+    private static final int JAVA_SERIALIZATION_MAGIC = 0xACED;
+
+    private static final int DATE_AS_STRING = 1;
+    private static final int DURATION_AS_STRING = 2;
+    private static final int PACKETS_AS_STRING = 4;
+    private static final int GENERIC_ROW = 8;
+    private static final int NOT_AN_EPOCH_DAY = Integer.MIN_VALUE;
+
+    private ConsolidatedStateFormat() {
+    }
+
+    public static byte[] toBytes(Map<String, List<List<String>>> map) {
+        try {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            write(map, byteArrayOutputStream);
+            return byteArrayOutputStream.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to serialize map", e);
+        }
+    }
+
+    public static void write(Map<String, List<List<String>>> map, OutputStream outputStream) throws IOException {
+        Map<String, Integer> addresses = new LinkedHashMap<>();
+        for (String key : map.keySet()) {
+            int comma = key.indexOf(',');
+            if (comma < 0) {
+                addresses.putIfAbsent(key, addresses.size());
+            } else {
+                addresses.putIfAbsent(key.substring(0, comma), addresses.size());
+                addresses.putIfAbsent(key.substring(comma + 1), addresses.size());
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream, 65536));
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+
+        writeVarLong(out, addresses.size());
+        for (String address : addresses.keySet()) {
+            writeString(out, address);
+        }
+
+        Map<String, Integer> epochDays = new HashMap<>();
+        writeVarLong(out, map.size());
+        for (Map.Entry<String, List<List<String>>> entry : map.entrySet()) {
+            String key = entry.getKey();
+            int comma = key.indexOf(',');
+            if (comma < 0) {
+                writeVarLong(out, addresses.get(key));
+                writeVarLong(out, 0);
+            } else {
+                writeVarLong(out, addresses.get(key.substring(0, comma)));
+                writeVarLong(out, addresses.get(key.substring(comma + 1)) + 1);
+            }
+
+            List<List<String>> rows = entry.getValue();
+            writeVarLong(out, rows.size());
+            for (List<String> row : rows) {
+                writeRow(out, row, epochDays);
+            }
+        }
+        out.flush();
+    }
+
+    public static HashMap<String, List<List<String>>> read(InputStream inputStream) throws IOException {
+        HashMap<String, List<List<String>>> map = new HashMap<>();
+        try (Reader reader = open(inputStream)) {
+            while (reader.next()) {
+                map.put(reader.key(), reader.rows());
+            }
+        }
+        return map;
+    }
+
+    // Entries are decoded one at a time, so a caller that only scans the state never holds it all.
+    public static Reader open(InputStream inputStream) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(inputStream, 65536);
+        buffered.mark(2);
+        int first = buffered.read();
+        int second = buffered.read();
+        buffered.reset();
+
+        if (((first << 8) | second) == JAVA_SERIALIZATION_MAGIC) {
+            return new Reader(readLegacy(buffered));
+        }
+        return new Reader(new DataInputStream(buffered));
+    }
+
+    private static void writeRow(DataOutputStream out, List<String> row, Map<String, Integer> epochDays) throws IOException {
+        if (row.size() != 3) {
+            out.writeByte(GENERIC_ROW);
+            writeVarLong(out, row.size());
+            for (String field : row) {
+                writeString(out, field);
+            }
+            return;
+        }
+
+        String date = row.get(0);
+        int epochDay = epochDays.computeIfAbsent(date, ConsolidatedStateFormat::parseEpochDay);
+        Long duration = parseCanonicalLong(row.get(1));
+        Long packets = parseCanonicalLong(row.get(2));
+
+        int flags = (epochDay == NOT_AN_EPOCH_DAY ? DATE_AS_STRING : 0)
+                | (duration == null ? DURATION_AS_STRING : 0)
+                | (packets == null ? PACKETS_AS_STRING : 0);
+        out.writeByte(flags);
+
+        if (epochDay == NOT_AN_EPOCH_DAY) {
+            writeString(out, date);
+        } else {
+            writeZigZag(out, epochDay);
+        }
+        if (duration == null) {
+            writeString(out, row.get(1));
+        } else {
+            writeZigZag(out, duration);
+        }
+        if (packets == null) {
+            writeString(out, row.get(2));
+        } else {
+            writeZigZag(out, packets);
+        }
+    }
+
+    private static int parseEpochDay(String date) {
+        if (date.length() != 10) {
+            return NOT_AN_EPOCH_DAY;
+        }
+        try {
+            LocalDate parsed = LocalDate.parse(date);
+            return parsed.toString().equals(date) ? (int) parsed.toEpochDay() : NOT_AN_EPOCH_DAY;
+        } catch (DateTimeParseException e) {
+            return NOT_AN_EPOCH_DAY;
+        }
+    }
+
+    private static Long parseCanonicalLong(String value) {
+        int length = value.length();
+        if (length == 0 || length > 19) {
+            return null;
+        }
+        int start = value.charAt(0) == '-' ? 1 : 0;
+        if (start == length || (value.charAt(start) == '0' && length > start + 1) || value.equals("-0")) {
+            return null;
+        }
+        for (int i = start; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return null;
+            }
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeZigZag(DataOutputStream out, long value) throws IOException {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static Iterator<Map.Entry<String, List<List<String>>>> readLegacy(InputStream inputStream) throws IOException {
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(inputStream)) {
+            Object obj = objectInputStream.readObject();
+            if (!(obj instanceof HashMap)) {
+                throw new IOException("The deserialized object is not a HashMap.");
+            }
+            @SuppressWarnings("unchecked")
+            HashMap<String, List<List<String>>> map = (HashMap<String, List<List<String>>>) obj;
+            return map.entrySet().iterator();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Class not found while deserializing.", e);
+        }
+    }
+
+    public static class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private final Iterator<Map.Entry<String, List<List<String>>>> legacy;
+        private final Map<Integer, String> dates = new HashMap<>();
+        private String[] addresses;
+        private long remaining;
+        private String key;
+        private List<List<String>> rows;
+
+        private Reader(DataInputStream in) throws IOException {
+            this.in = in;
+            this.legacy = null;
+
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a consolidated state file.");
+            }
+            int version = in.readUnsignedByte();
+            if (version > VERSION) {
+                throw new IOException("Unsupported consolidated state version " + version);
+            }
+
+            addresses = new String[(int) readVarLong()];
+            for (int i = 0; i < addresses.length; i++) {
+                addresses[i] = readString();
+            }
+            remaining = readVarLong();
+        }
+
+        private Reader(Iterator<Map.Entry<String, List<List<String>>>> legacy) {
+            this.in = null;
+            this.legacy = legacy;
+        }
+
+        public boolean next() throws IOException {
+            if (legacy != null) {
+                if (!legacy.hasNext()) {
+                    return false;
+                }
+                Map.Entry<String, List<List<String>>> entry = legacy.next();
+                key = entry.getKey();
+                rows = entry.getValue();
+                return true;
+            }
+
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+
+            String source = addresses[(int) readVarLong()];
+            int destination = (int) readVarLong();
+            key = destination == 0 ? source : source + "," + addresses[destination - 1];
+
+            int rowCount = (int) readVarLong();
+            rows = new ArrayList<>(rowCount);
+            for (int i = 0; i < rowCount; i++) {
+                rows.add(readRow());
+            }
+            return true;
+        }
+
+        public String key() {
+            return key;
+        }
+
+        public List<List<String>> rows() {
+            return rows;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+
+        private List<String> readRow() throws IOException {
+            int flags = in.readUnsignedByte();
+            List<String> row = new ArrayList<>(3);
+
+            if ((flags & GENERIC_ROW) != 0) {
+                int size = (int) readVarLong();
+                for (int i = 0; i < size; i++) {
+                    row.add(readString());
+                }
+                return row;
+            }
+
+            if ((flags & DATE_AS_STRING) != 0) {
+                row.add(readString());
+            } else {
+                row.add(dates.computeIfAbsent((int) readZigZag(), day -> LocalDate.ofEpochDay(day).toString()));
+            }
+            row.add((flags & DURATION_AS_STRING) != 0 ? readString() : Long.toString(readZigZag()));
+            row.add((flags & PACKETS_AS_STRING) != 0 ? readString() : Long.toString(readZigZag()));
+            return row;
+        }
+
+        private String readString() throws IOException {
+            byte[] bytes = new byte[(int) readVarLong()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private long readZigZag() throws IOException {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException("Truncated consolidated state file.");
+                }
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in consolidated state file.");
+        }
+    }
+}
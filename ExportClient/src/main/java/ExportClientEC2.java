@@ -1,16 +1,18 @@
 
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
 
-import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
 import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 import software.amazon.awssdk.services.s3.model.S3Exception;
@@ -18,57 +20,105 @@ import software.amazon.awssdk.services.s3.model.S3Exception;
 public class ExportClientEC2 {
 
     public static String bucketName = "s3-consolidated-data-ec2-021095";
-    public static String keyName = "hashmap.ser";
+    public static String keyName = SegmentedStateStore.BASE_KEY;
     public static Scanner scanner = new Scanner(System.in);
 
     public static void main(String[] args) {
         boolean bool = true;
         S3Client s3 = S3Client.builder().build();
-        HashMap<String, List<List<String>>> Consolidatemap = new ExportClientLambda().ReadConsolidateMapFromS3(bucketName, s3);
+        ShardedStateStore stateStore = new ShardedStateStore(s3, bucketName, ObjectCodec.NONE);
+        stateStore.setCacheDirectory(cacheDirectory());
+
+        String batch = System.getProperty("export.batch");
+        if (batch != null) {
+            runBatch(stateStore, batch, Paths.get(System.getProperty("export.output", "export.csv")));
+            return;
+        }
+
         while (bool) {
             System.out.println("source IP: ");
             String sourceIP = scanner.nextLine();
             System.out.println("destination IP: ");
             String destinationIP = scanner.nextLine();
+            if (destinationIP.trim().isEmpty()) {
+                createFanCsvFile(stateStore.read(HyperLogLog.stateKey(sourceIP.trim())), sourceIP.trim());
+                continue;
+            }
+            if (AddressIndex.Range.isPattern(sourceIP) || AddressIndex.Range.isPattern(destinationIP)) {
+                runQuery(stateStore, sourceIP, destinationIP);
+                continue;
+            }
             String key = sourceIP + "," + destinationIP;
-            if (Consolidatemap.containsKey(key)) {
+            KeyStatistics statistics = stateStore.readStatistics(key);
+            if (statistics != null) {
                 System.out.println("Key was found in the HashMap.");
-                List<List<String>> rawData = Consolidatemap.get(key);
-                List<List<String>> consolidatedData = consolidateDates(rawData);
-                CreatCsvFile(consolidatedData, sourceIP, destinationIP);
+                CreatCsvFile(statistics, sourceIP, destinationIP);
             } else {
                 System.out.println("The key doesn't exist in the HashMap.");
             }
         }
     }
 
-    public HashMap<String, List<List<String>>> ReadConsolidateMapFromS3(String bucketName, S3Client s3Client) {
-        HashMap<String, List<List<String>>> map = null;
+    // Exports the pairs listed in the file named by export.batch, one "source,destination" per line,
+    // or every pair when it is "all". The output is a single CSV, or one file per pair when
+    // export.output is a directory.
+    public static void runBatch(ShardedStateStore stateStore, String batch, Path output) {
+        Set<String> keys = null;
+        if (!batch.equals(BatchExport.ALL_KEYS)) {
+            keys = new LinkedHashSet<>();
+            try {
+                for (String line : Files.readAllLines(Paths.get(batch))) {
+                    String key = line.trim().replaceAll("[\\s,]+", ",");
+                    if (!key.isEmpty()) {
+                        keys.add(key);
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Error reading the pairs in " + batch, e);
+            }
+        }
 
+        int parallelism = Integer.getInteger("export.parallelism", Runtime.getRuntime().availableProcessors());
+        long start = System.currentTimeMillis();
+        long exported = new BatchExport(stateStore, parallelism).run(keys, output);
+        System.out.println("Exported " + exported + " pair(s) to " + output + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    // Exports every IPv4 pair matching a source and a destination given as an address, a CIDR block
+    // or *, each to its own data_<src>:<dst>.csv as a single lookup does.
+    public static void runQuery(ShardedStateStore stateStore, String sources, String destinations) {
+        AddressIndex.Range sourceRange;
+        AddressIndex.Range destinationRange;
         try {
-            if (!fileExistsOnS3(s3Client, bucketName, "hashmap.ser")) {
-                return new HashMap<>();
-            }
-            GetObjectRequest getObjectRequest = GetObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key("hashmap.ser")
-                    .build();
+            sourceRange = AddressIndex.Range.parse(sources);
+            destinationRange = AddressIndex.Range.parse(destinations);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
 
-            ResponseInputStream<?> s3ObjectStream = s3Client.getObject(getObjectRequest);
+        int parallelism = Integer.getInteger("export.parallelism", Runtime.getRuntime().availableProcessors());
+        long start = System.currentTimeMillis();
+        long exported = new BatchExport(stateStore, parallelism).query(sourceRange, destinationRange, Paths.get("."));
+        System.out.println("Exported " + exported + " pair(s) matching " + sources.trim() + " -> " + destinations.trim()
+                + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
 
-            try (InputStream inputStream = s3ObjectStream; ObjectInputStream objectInputStream = new ObjectInputStream(inputStream)) {
-                Object obj = objectInputStream.readObject();
-                if (obj instanceof HashMap) {
-                    @SuppressWarnings("unchecked")
-                    HashMap<String, List<List<String>>> tempMap = (HashMap<String, List<List<String>>>) obj;
-                    map = tempMap;
-                }
-            }
-        } catch (S3Exception | IOException | ClassNotFoundException e) {
+    // Local copies of the consolidated data live under export.cache.dir, ~/.cache/export-client by
+    // default; an empty value turns the cache off.
+    public static Path cacheDirectory() {
+        String directory = System.getProperty("export.cache.dir",
+                Paths.get(System.getProperty("user.home"), ".cache", "export-client").toString());
+        return directory.isEmpty() ? null : Paths.get(directory);
+    }
+
+    public HashMap<String, List<List<String>>> ReadConsolidateMapFromS3(String bucketName, S3Client s3Client) {
+        try {
+            return new ShardedStateStore(s3Client, bucketName, ObjectCodec.NONE).read();
+        } catch (S3Exception e) {
             e.printStackTrace();
+            return null;
         }
-
-        return map;
     }
 
     public static boolean fileExistsOnS3(S3Client s3, String bucketName, String key) {
@@ -122,20 +172,10 @@ public class ExportClientEC2 {
         return consolidatedData;
     }
 
-    public static void CreatCsvFile(List<List<String>> data, String sourceIp, String destinationIp) {
-        List<Double> ListMeanAndVariance = MeanAndVariance(data);
+    public static void CreatCsvFile(KeyStatistics statistics, String sourceIp, String destinationIp) {
         try {
             FileWriter writer = new FileWriter("data_" + sourceIp + ":" + destinationIp + ".csv");
-            writer.append("Source IP,Destination IP,Mean TotalFlowDuration,Standard Deviation TotalFlowDuration,Mean TotalPacketsForward,Standard Deviation TotalPacketsForward\n");
-            writer.append(sourceIp).append(",").append(destinationIp).append(",")
-                    .append(ListMeanAndVariance.get(0).toString()).append(",")
-                    .append(ListMeanAndVariance.get(1).toString()).append(",")
-                    .append(ListMeanAndVariance.get(2).toString()).append(",")
-                    .append(ListMeanAndVariance.get(3).toString()).append("\n\n");
-            writer.append("Date,TotalFlowDuration,TotalPacketsForward\n");
-            for (List<String> L : data) {
-                writer.append(String.join(",", L)).append("\n");
-            }
+            writeCsv(writer, statistics.dailyRows(), statistics.meanAndVariance(), sourceIp, destinationIp);
             writer.flush();
             writer.close();
         } catch (IOException e) {
@@ -143,6 +183,41 @@ public class ExportClientEC2 {
         }
     }
 
+    // With no destination given, the approximate number of distinct destinations and sources of the
+    // address per day, from the HyperLogLog sketches the summarize stage wrote when fan sketches were
+    // on, see HyperLogLog.
+    public static void createFanCsvFile(List<List<String>> sketchRows, String ip) {
+        List<List<String>> fanRows = sketchRows == null ? List.of() : HyperLogLog.fanRows(sketchRows);
+        if (fanRows.isEmpty()) {
+            System.out.println("No fan-out or fan-in sketches for " + ip + ".");
+            return;
+        }
+        try (FileWriter writer = new FileWriter("fan_" + ip + ".csv")) {
+            writer.append("Date,Fan-out,Fan-in\n");
+            for (List<String> row : fanRows) {
+                writer.append(String.join(",", row)).append("\n");
+            }
+            System.out.println("Wrote the approximate fan-out and fan-in of " + ip + " over " + fanRows.size()
+                    + " day(s) to fan_" + ip + ".csv");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void writeCsv(Writer writer, List<List<String>> data, List<Double> ListMeanAndVariance, String sourceIp,
+        String destinationIp) throws IOException {
+        writer.append("Source IP,Destination IP,Mean TotalFlowDuration,Standard Deviation TotalFlowDuration,Mean TotalPacketsForward,Standard Deviation TotalPacketsForward\n");
+        writer.append(sourceIp).append(",").append(destinationIp).append(",")
+                .append(ListMeanAndVariance.get(0).toString()).append(",")
+                .append(ListMeanAndVariance.get(1).toString()).append(",")
+                .append(ListMeanAndVariance.get(2).toString()).append(",")
+                .append(ListMeanAndVariance.get(3).toString()).append("\n\n");
+        writer.append("Date,TotalFlowDuration,TotalPacketsForward\n");
+        for (List<String> L : data) {
+            writer.append(String.join(",", L)).append("\n");
+        }
+    }
+
     public static List<Double> MeanAndVariance(List<List<String>> data) {
         List<Double> ListMeanAndVariance = new ArrayList<>();
         Double MeanTfdPerday = 0.0;
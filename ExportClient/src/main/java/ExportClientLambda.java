@@ -1,15 +1,14 @@
 
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Scanner;
 
-import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
 import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 import software.amazon.awssdk.services.s3.model.S3Exception;
@@ -17,22 +16,27 @@ import software.amazon.awssdk.services.s3.model.S3Exception;
 public class ExportClientLambda {
 
     public static String bucketName = "s3-consolidated-data-lambda-021095";
-    public static String keyName = "hashmap.ser";
+    public static String keyName = SegmentedStateStore.BASE_KEY;
     public static Scanner scanner = new Scanner(System.in);
 
     public static void main(String[] args) {
         boolean bool = true;
         S3Client s3 = S3Client.builder().build();
-        HashMap<String, List<List<String>>> Consolidatemap = new ExportClientLambda().ReadConsolidateMapFromS3(bucketName, s3);
+        BatchExportReader batchReader = new BatchExportReader(s3, bucketName, Integer.getInteger("export.threads", 32),
+                cacheDirectory());
         while (bool) {
             System.out.println("source IP: ");
             String sourceIP = scanner.nextLine();
             System.out.println("destination IP: ");
             String destinationIP = scanner.nextLine();
+            if (destinationIP.trim().isEmpty()) {
+                ExportClientEC2.createFanCsvFile(batchReader.read(HyperLogLog.stateKey(sourceIP.trim())), sourceIP.trim());
+                continue;
+            }
             String key = sourceIP + "," + destinationIP;
-            if (Consolidatemap.containsKey(key)) {
+            List<List<String>> rawData = batchReader.read(key);
+            if (rawData != null) {
                 System.out.println("Key was found in the HashMap.");
-                List<List<String>> rawData = Consolidatemap.get(key);
                 List<List<String>> consolidatedData = consolidateDates(rawData);
                 CreatCsvFile(consolidatedData, sourceIP, destinationIP);
             } else {
@@ -41,33 +45,22 @@ public class ExportClientLambda {
         }
     }
 
-    public HashMap<String, List<List<String>>> ReadConsolidateMapFromS3(String bucketName, S3Client s3Client) {
-        HashMap<String, List<List<String>>> map = null;
+    // Local copies of the consolidated data live under export.cache.dir, ~/.cache/export-client by
+    // default; an empty value turns the cache off.
+    public static Path cacheDirectory() {
+        String directory = System.getProperty("export.cache.dir",
+                Paths.get(System.getProperty("user.home"), ".cache", "export-client").toString());
+        return directory.isEmpty() ? null : Paths.get(directory);
+    }
 
+    public HashMap<String, List<List<String>>> ReadConsolidateMapFromS3(String bucketName, S3Client s3Client) {
         try {
-            if (!fileExistsOnS3(s3Client, bucketName, "hashmap.ser")) {
-                return new HashMap<>();
-            }
-            GetObjectRequest getObjectRequest = GetObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key("hashmap.ser")
-                    .build();
-
-            ResponseInputStream<?> s3ObjectStream = s3Client.getObject(getObjectRequest);
-
-            try (ResponseInputStream<?> inputStream = s3ObjectStream; ObjectInputStream objectInputStream = new ObjectInputStream(inputStream)) {
-                Object obj = objectInputStream.readObject();
-                if (obj instanceof HashMap) {
-                    @SuppressWarnings("unchecked")
-                    HashMap<String, List<List<String>>> tempMap = (HashMap<String, List<List<String>>>) obj;
-                    map = tempMap;
-                }
-            }
-        } catch (S3Exception | IOException | ClassNotFoundException e) {
+            return new BatchExportReader(s3Client, bucketName, Integer.getInteger("export.threads", 32), cacheDirectory())
+                    .read();
+        } catch (S3Exception e) {
             e.printStackTrace();
+            return null;
         }
-
-        return map;
     }
 
     public static boolean fileExistsOnS3(S3Client s3, String bucketName, String key) {
@@ -0,0 +1,134 @@
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// The per-date sums of one key's flow duration and forward packets, with the running mean and sum of
+// squared deviations (Welford) of those daily sums. Adding a row to a date that is already there
+// takes the date's old sum out of the moments and puts the new one in, so the statistics stay in
+// step with the rows without walking the history again.
+public final class KeyStatistics {
+
+    private final TreeMap<String, double[]> days = new TreeMap<>();
+    private double durationMean;
+    private double durationM2;
+    private double packetsMean;
+    private double packetsM2;
+
+    public static KeyStatistics of(List<List<String>> rows) {
+        KeyStatistics statistics = new KeyStatistics();
+        for (List<String> row : rows) {
+            statistics.add(row);
+        }
+        return statistics;
+    }
+
+    // Rows that are not date, duration, packets are left out.
+    public void add(List<String> row) {
+        if (row.size() != 3) {
+            return;
+        }
+        try {
+            add(row.get(0), Double.parseDouble(row.get(1)), Double.parseDouble(row.get(2)));
+        } catch (NumberFormatException e) {
+            // Not a summary row.
+        }
+    }
+
+    public void add(String date, double duration, double packets) {
+        double[] sums = days.get(date);
+        if (sums == null) {
+            sums = new double[2];
+            days.put(date, sums);
+        } else {
+            exclude(sums[0], sums[1]);
+        }
+        sums[0] += duration;
+        sums[1] += packets;
+        include(sums[0], sums[1]);
+    }
+
+    public int dayCount() {
+        return days.size();
+    }
+
+    // One row per date, in date order, formatted as ExportClientEC2.consolidateDates formats them.
+    public List<List<String>> dailyRows() {
+        List<List<String>> rows = new ArrayList<>(days.size());
+        for (Map.Entry<String, double[]> day : days.entrySet()) {
+            List<String> row = new ArrayList<>(3);
+            row.add(day.getKey());
+            row.add(String.valueOf(day.getValue()[0]));
+            row.add(String.valueOf(Math.round(day.getValue()[1])));
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    // Mean and population standard deviation of the daily duration, then of the daily packets.
+    public List<Double> meanAndVariance() {
+        int count = days.size();
+        List<Double> meanAndVariance = new ArrayList<>(4);
+        meanAndVariance.add(count == 0 ? Double.NaN : durationMean);
+        meanAndVariance.add(Math.sqrt(Math.max(0.0, durationM2) / count));
+        meanAndVariance.add(count == 0 ? Double.NaN : packetsMean);
+        meanAndVariance.add(Math.sqrt(Math.max(0.0, packetsM2) / count));
+        return meanAndVariance;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(days.size());
+        for (Map.Entry<String, double[]> day : days.entrySet()) {
+            out.writeUTF(day.getKey());
+            out.writeDouble(day.getValue()[0]);
+            out.writeDouble(day.getValue()[1]);
+        }
+        out.writeDouble(durationMean);
+        out.writeDouble(durationM2);
+        out.writeDouble(packetsMean);
+        out.writeDouble(packetsM2);
+    }
+
+    public static KeyStatistics read(DataInputStream in) throws IOException {
+        KeyStatistics statistics = new KeyStatistics();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            statistics.days.put(in.readUTF(), new double[] { in.readDouble(), in.readDouble() });
+        }
+        statistics.durationMean = in.readDouble();
+        statistics.durationM2 = in.readDouble();
+        statistics.packetsMean = in.readDouble();
+        statistics.packetsM2 = in.readDouble();
+        return statistics;
+    }
+
+    // days already holds the date being included.
+    private void include(double duration, double packets) {
+        int count = days.size();
+        double durationDelta = duration - durationMean;
+        durationMean += durationDelta / count;
+        durationM2 += durationDelta * (duration - durationMean);
+        double packetsDelta = packets - packetsMean;
+        packetsMean += packetsDelta / count;
+        packetsM2 += packetsDelta * (packets - packetsMean);
+    }
+
+    // days still holds the date being excluded.
+    private void exclude(double duration, double packets) {
+        int count = days.size();
+        if (count == 1) {
+            durationMean = durationM2 = packetsMean = packetsM2 = 0.0;
+            return;
+        }
+        double durationMeanBefore = durationMean;
+        durationMean = (count * durationMean - duration) / (count - 1);
+        durationM2 -= (duration - durationMeanBefore) * (duration - durationMean);
+        double packetsMeanBefore = packetsMean;
+        packetsMean = (count * packetsMean - packets) / (count - 1);
+        packetsM2 -= (packets - packetsMeanBefore) * (packets - packetsMean);
+    }
+}
@@ -0,0 +1,1103 @@
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+// The consolidated state is the base snapshot hashmap.bin plus one immutable delta segment per
+// ingested file under segments/, both below an optional key prefix. Segment keys start with the
+// zero-padded write time, so they list in write order. Compaction folds old segments into a new base
+// and records the last folded key in the base's "folded-through" metadata, and the folded segments
+// that may still exist in a list under folded/ named by its "folded-list" metadata. Readers apply the
+// segments after folded-through, and those up to it that are not in the list, because they were
+// written late by a host with a lagging clock or a slow upload.
+public class SegmentedStateStore {
+
+    public static final String BASE_KEY = "hashmap.bin";
+    public static final String LEGACY_BASE_KEY = "hashmap.ser";
+    public static final String SEGMENT_PREFIX = "segments/";
+    public static final String FOLDED_PREFIX = "folded/";
+    public static final String FOLDED_THROUGH = "folded-through";
+    public static final String FOLDED_LIST = "folded-list";
+    public static final String GENERATION = "generation";
+
+    private static final long ENTRY_GAP = 65536;
+
+    private final S3Client s3Client;
+    private final String bucket;
+    private final ObjectCodec codec;
+    private final String baseKey;
+    private final String legacyBaseKey;
+    private final String segmentPrefix;
+    private final String foldedPrefix;
+    private final String indexKey;
+    private final String addressIndexKey;
+    private final String dataPrefix;
+    private final String prefix;
+    private volatile Base lastBase = Base.NONE;
+    private volatile boolean keyIndex;
+    private volatile boolean rollUp;
+    private boolean staleIndexDeleted;
+    private volatile Path cacheDirectory;
+    private CachedIndex cachedIndex;
+
+    public SegmentedStateStore(S3Client s3Client, String bucket) {
+        this(s3Client, bucket, ObjectCodec.NONE, "");
+    }
+
+    // The codec applies to the objects this store writes; reads follow each object's own metadata.
+    public SegmentedStateStore(S3Client s3Client, String bucket, ObjectCodec codec, String prefix) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.codec = codec;
+        this.baseKey = prefix + BASE_KEY;
+        this.legacyBaseKey = prefix + LEGACY_BASE_KEY;
+        this.segmentPrefix = prefix + SEGMENT_PREFIX;
+        this.foldedPrefix = prefix + FOLDED_PREFIX;
+        this.indexKey = prefix + StateKeyIndex.INDEX_KEY;
+        this.addressIndexKey = prefix + AddressIndex.INDEX_KEY;
+        this.dataPrefix = prefix + StateKeyIndex.DATA_PREFIX;
+        this.prefix = prefix;
+    }
+
+    // With the key index on, every base written is also published as a StateKeyIndex, which read(key)
+    // uses. With it off, the first base written removes an index left from an earlier run.
+    public void setKeyIndex(boolean keyIndex) {
+        this.keyIndex = keyIndex;
+    }
+
+    // With roll-up on, compaction sums the rows of a key that share a date into one row, see
+    // DailyRollup. Readers do not need it; they sum rows by date anyway.
+    public void setRollUp(boolean rollUp) {
+        this.rollUp = rollUp;
+    }
+
+    boolean rollUp() {
+        return rollUp;
+    }
+
+    // The base this store last read or wrote, Base.NONE when there is none.
+    Base lastBase() {
+        return lastBase;
+    }
+
+    public String appendSegment(HashMap<String, List<List<String>>> batch) {
+        String segmentKey = String.format("%s%019d-%s.bin", segmentPrefix, System.currentTimeMillis(), UUID.randomUUID());
+
+        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(segmentKey)
+                .metadata(codec.metadata())
+                .build();
+
+        s3Client.putObject(putObjectRequest, RequestBody.fromBytes(encode(serialize(batch))));
+        return segmentKey;
+    }
+
+    public HashMap<String, List<List<String>>> read() {
+        return readSnapshot().map;
+    }
+
+    // Keeps a copy of the key index and its data object under directory/<bucket>/<prefix>, and
+    // answers read(key) from memory-mapped files. The copy is checked against the index ETag with a
+    // conditional HEAD on every lookup and downloaded again only when the index changed.
+    public void setCacheDirectory(Path directory) {
+        this.cacheDirectory = directory == null ? null : directory.resolve(bucket).resolve(prefix.isEmpty() ? "." : prefix);
+    }
+
+    // Returns the rows of one key, or null when the key is not in the state. With a key index this
+    // reads a few index records and one entry of the data object instead of the whole base, plus the
+    // segments written after the index.
+    public List<List<String>> read(String key) {
+        RowLookup lookup = lookup(() -> new RowLookup(key));
+        return lookup != null ? lookup.rows : read().get(key);
+    }
+
+    // Returns the per-date sums and moments of one key, or null when the key is not in the state. A
+    // key index carries them precomputed in the key's entry, and only the rows of later segments are
+    // added; without one they are computed from the key's rows.
+    public KeyStatistics readStatistics(String key) {
+        StatisticsLookup lookup = lookup(() -> new StatisticsLookup(key));
+        if (lookup != null) {
+            return lookup.statistics;
+        }
+        List<List<String>> rows = read().get(key);
+        return rows == null ? null : KeyStatistics.of(rows);
+    }
+
+    // Returns every IPv4 pair whose source is in sources and whose destination is in destinations,
+    // with its rows. With an address index this reads the index blocks and data entries of the
+    // matching range only, plus the segments written after the index; without one it filters the
+    // whole state.
+    public HashMap<String, List<List<String>>> query(AddressIndex.Range sources, AddressIndex.Range destinations) {
+        while (true) {
+            try {
+                HashMap<String, List<List<String>>> matches = queryIndexed(sources, destinations);
+                if (matches == null) {
+                    matches = new HashMap<>();
+                    addMatches(matches, read(), sources, destinations);
+                }
+                return matches;
+            } catch (NoSuchKeyException e) {
+                System.out.println("State was compacted while reading it, reading again.");
+            } catch (S3Exception e) {
+                if (e.statusCode() != 412) {
+                    throw e;
+                }
+                System.out.println("Address index was rewritten while reading it, reading again.");
+            }
+        }
+    }
+
+    // Returns null when there is no address index. Reads after the first are conditional on its ETag,
+    // and the HEAD at the end checks it was not replaced while the segments were read.
+    private HashMap<String, List<List<String>>> queryIndexed(AddressIndex.Range sources, AddressIndex.Range destinations) {
+        ResponseBytes<GetObjectResponse> head;
+        try {
+            head = s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(addressIndexKey)
+                    .range("bytes=0-" + (AddressIndex.HEADER_SIZE + 65536 - 1))
+                    .build());
+        } catch (NoSuchKeyException e) {
+            return null;
+        }
+
+        String indexVersion = head.response().eTag();
+        Map<String, String> metadata = head.response().metadata();
+        byte[] headArray = head.asByteArray();
+        long recordCount = AddressIndex.recordCount(headArray);
+
+        int order = sources.size() <= destinations.size() ? AddressIndex.BY_SOURCE : AddressIndex.BY_DESTINATION;
+        AddressIndex.Range leading = order == AddressIndex.BY_SOURCE ? sources : destinations;
+        AddressIndex.Range other = order == AddressIndex.BY_SOURCE ? destinations : sources;
+        long fencesFrom = AddressIndex.fencesOffset(recordCount, order);
+        long fencesTo = AddressIndex.fencesOffset(recordCount, order + 1);
+        ByteBuffer fences = fencesTo <= headArray.length
+                ? ByteBuffer.wrap(headArray, (int) fencesFrom, (int) (fencesTo - fencesFrom))
+                : ByteBuffer.wrap(readRange(addressIndexKey, indexVersion, fencesFrom, fencesTo - fencesFrom));
+        long[] span = AddressIndex.span(fences, recordCount, leading);
+
+        HashMap<String, List<List<String>>> matches = new HashMap<>();
+        if (span[1] > span[0]) {
+            long recordsFrom = AddressIndex.recordsOffset(recordCount, order) + span[0] * AddressIndex.RECORD_SIZE;
+            byte[] records = readRange(addressIndexKey, indexVersion, recordsFrom, (span[1] - span[0]) * AddressIndex.RECORD_SIZE);
+            readEntries(metadata.get(StateKeyIndex.DATA_KEY),
+                    AddressIndex.matches(ByteBuffer.wrap(records), leading, other), matches);
+        }
+
+        for (String segmentKey : unfolded(listSegments(), metadata.getOrDefault(FOLDED_THROUGH, ""),
+                metadata.getOrDefault(FOLDED_LIST, ""))) {
+            addMatches(matches, readMap(segmentKey), sources, destinations);
+        }
+
+        s3Client.headObject(HeadObjectRequest.builder()
+                .bucket(bucket)
+                .key(addressIndexKey)
+                .ifMatch(indexVersion)
+                .build());
+        return matches;
+    }
+
+    // Entries less than ENTRY_GAP bytes apart are read with one range GET.
+    private void readEntries(String dataKey, List<long[]> entries, HashMap<String, List<List<String>>> matches) {
+        for (int from = 0; from < entries.size();) {
+            int to = from + 1;
+            while (to < entries.size() && entries.get(to)[0] - (entries.get(to - 1)[0] + entries.get(to - 1)[1]) < ENTRY_GAP) {
+                to++;
+            }
+            long start = entries.get(from)[0];
+            long[] last = entries.get(to - 1);
+            byte[] bytes = readRange(dataKey, null, start, last[0] + last[1] - start);
+            for (long[] entry : entries.subList(from, to)) {
+                try {
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, (int) (entry[0] - start), (int) entry[1]));
+                    in.skipBytes(in.readInt());
+                    merge(matches, ConsolidatedStateFormat.read(in));
+                } catch (IOException e) {
+                    throw new RuntimeException("Error reading an address index entry of " + dataKey, e);
+                }
+            }
+            from = to;
+        }
+    }
+
+    private byte[] readRange(String key, String version, long from, long length) {
+        return s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .ifMatch(version)
+                .range("bytes=" + from + "-" + (from + length - 1))
+                .build()).asByteArray();
+    }
+
+    private static void addMatches(HashMap<String, List<List<String>>> matches, HashMap<String, List<List<String>>> map,
+            AddressIndex.Range sources, AddressIndex.Range destinations) {
+        map.forEach((key, rows) -> {
+            long[] addresses = AddressIndex.parseKey(key);
+            if (addresses != null && sources.contains(addresses[0]) && destinations.contains(addresses[1])) {
+                matches.computeIfAbsent(key, k -> new ArrayList<>()).addAll(rows);
+            }
+        });
+    }
+
+    // Returns null when there is no key index.
+    private <T extends Lookup> T lookup(Supplier<T> newLookup) {
+        while (true) {
+            try {
+                T lookup = newLookup.get();
+                return readIndexed(lookup) ? lookup : null;
+            } catch (NoSuchKeyException e) {
+                System.out.println("State was compacted while reading it, reading again.");
+            } catch (S3Exception e) {
+                if (e.statusCode() != 412) {
+                    throw e;
+                }
+                System.out.println("Key index was rewritten while reading it, reading again.");
+            }
+        }
+    }
+
+    // The returned snapshot's base lists every segment in its map, those of the base read and those
+    // applied on top of it, so writing the map back with writeBase() does not apply them twice.
+    Snapshot readSnapshot() {
+        while (true) {
+            List<String> segments = listSegments();
+            Snapshot base = readBase();
+            try {
+                List<String> unfolded = unfolded(segments, base.base.foldedThrough, base.base.foldedKey);
+                List<String> folded = new ArrayList<>(segments);
+                folded.removeAll(new HashSet<>(unfolded));
+                String foldedThrough = base.base.foldedThrough;
+                for (String segmentKey : unfolded) {
+                    merge(base.map, readMap(segmentKey));
+                    folded.add(segmentKey);
+                    foldedThrough = later(foldedThrough, segmentKey);
+                }
+                Collections.sort(folded);
+                return new Snapshot(base.map, base.base.including(foldedThrough, folded));
+            } catch (NoSuchKeyException e) {
+                System.out.println("State was compacted while reading it, reading again.");
+            }
+        }
+    }
+
+    // Serializes a base for writeBase(), with its key index when that is on. statistics may hold the
+    // running statistics of some keys, see StateKeyIndex.build().
+    Image image(HashMap<String, List<List<String>>> map, Map<String, KeyStatistics> statistics) {
+        return new Image(serialize(map), keyIndex ? StateKeyIndex.build(map, statistics) : null);
+    }
+
+    boolean keyIndex() {
+        return keyIndex;
+    }
+
+    // Writes a base that includes the given segments up to foldedThrough, conditional on previous
+    // still being the base, and returns it, or null when another consolidator replaced previous first.
+    // previous is null only for a store nobody else writes to yet, a shard being migrated to. The key
+    // index is written after the base and only moves forward, so the index of an older base never
+    // replaces that of a newer one. Readers of the index take the folded-through and list of the
+    // index, so an index older than the base is read consistently, and the segments of a base are
+    // deleted only after its index is written.
+    Base writeBase(Image image, Base previous, String foldedThrough, List<String> folded) {
+        long generation = previous == null ? 1 : previous.generation + 1;
+        String foldedKey = foldedThrough.isEmpty() ? "" : writeFolded(folded);
+
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put(FOLDED_THROUGH, foldedThrough);
+        metadata.put(FOLDED_LIST, foldedKey);
+        metadata.put(GENERATION, Long.toString(generation));
+        Map<String, String> baseMetadata = new HashMap<>(codec.metadata());
+        baseMetadata.putAll(metadata);
+
+        PutObjectRequest.Builder putObjectRequest = PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(baseKey)
+                .metadata(baseMetadata);
+        if (previous != null) {
+            putObjectRequest.overrideConfiguration(config -> config.putHeader(
+                    previous.version.isEmpty() ? "If-None-Match" : "If-Match",
+                    previous.version.isEmpty() ? "*" : previous.version));
+        }
+
+        Base written;
+        try {
+            String version = s3Client.putObject(putObjectRequest.build(), RequestBody.fromBytes(encode(image.serializedMap))).eTag();
+            written = new Base(version, generation, foldedThrough, foldedKey, folded);
+        } catch (S3Exception e) {
+            if (e.statusCode() != 412 && e.statusCode() != 409) {
+                throw e;
+            }
+            deleteSegments(foldedKey.isEmpty() ? List.of() : List.of(foldedKey));
+            return null;
+        }
+        lastBase = written;
+
+        if (image.keyIndex != null) {
+            writeKeyIndex(image.keyIndex, metadata, generation);
+        } else if (!staleIndexDeleted) {
+            deleteKeyIndex();
+        }
+        staleIndexDeleted = true;
+
+        if (previous != null && !previous.foldedKey.isEmpty()) {
+            deleteSegments(List.of(previous.foldedKey));
+        }
+        return written;
+    }
+
+    private String writeFolded(List<String> folded) {
+        String foldedKey = String.format("%s%019d-%s.txt", foldedPrefix, System.currentTimeMillis(), UUID.randomUUID());
+        StringBuilder text = new StringBuilder();
+        for (String segmentKey : folded) {
+            text.append(segmentKey).append('\n');
+        }
+        s3Client.putObject(PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(foldedKey)
+                .contentType("text/plain")
+                .build(), RequestBody.fromString(text.toString(), StandardCharsets.UTF_8));
+        return foldedKey;
+    }
+
+    private Set<String> readFolded(String foldedKey) {
+        String text = s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(foldedKey)
+                .build()).asString(StandardCharsets.UTF_8);
+        Set<String> folded = new HashSet<>();
+        for (String segmentKey : text.split("\n")) {
+            if (!segmentKey.isEmpty()) {
+                folded.add(segmentKey);
+            }
+        }
+        return folded;
+    }
+
+    // The segments to apply on top of a base or key index: those after foldedThrough, and those up to
+    // it that are not in the list of folded segments, which is read only when there are any. Without
+    // a list, as for bases written before there were lists, every segment up to foldedThrough is folded.
+    private List<String> unfolded(List<String> segments, String foldedThrough, String foldedKey) {
+        List<String> unfolded = new ArrayList<>();
+        Set<String> folded = null;
+        for (String segmentKey : segments) {
+            if (segmentKey.compareTo(foldedThrough) <= 0) {
+                if (foldedKey.isEmpty()) {
+                    continue;
+                }
+                if (folded == null) {
+                    folded = readFolded(foldedKey);
+                }
+                if (folded.contains(segmentKey)) {
+                    continue;
+                }
+            }
+            unfolded.add(segmentKey);
+        }
+        return unfolded;
+    }
+
+    private void writeKeyIndex(StateKeyIndex.Built built, Map<String, String> baseMetadata, long generation) {
+        String dataKey = String.format("%s%019d-%s.dat", dataPrefix, System.currentTimeMillis(), UUID.randomUUID());
+        s3Client.putObject(PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(dataKey)
+                .build(), RequestBody.fromBytes(built.data));
+
+        Map<String, String> metadata = new HashMap<>(baseMetadata);
+        metadata.put(StateKeyIndex.DATA_KEY, dataKey);
+        Set<String> unreferenced = new HashSet<>();
+        unreferenced.add(dataKey);
+        putIndex(addressIndexKey, built.addresses, metadata, generation, unreferenced);
+        putIndex(indexKey, built.index, metadata, generation, unreferenced);
+
+        // The data objects of the indexes replaced, and ours when a newer index was there already,
+        // unless an index still points to them.
+        for (String key : List.of(addressIndexKey, indexKey)) {
+            try {
+                unreferenced.remove(s3Client.headObject(HeadObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .build()).metadata().get(StateKeyIndex.DATA_KEY));
+            } catch (NoSuchKeyException e) {
+                // Removed since, by a consolidator with the key index off.
+            }
+        }
+        deleteSegments(new ArrayList<>(unreferenced));
+    }
+
+    // Puts one index object unless the one there already belongs to a base of this generation or a
+    // later one, and adds the data object of the index it replaces to replaced.
+    private void putIndex(String key, byte[] bytes, Map<String, String> metadata, long generation, Set<String> replaced) {
+        while (true) {
+            String condition = "If-None-Match";
+            String version = "*";
+            String replacedData = null;
+            try {
+                HeadObjectResponse current = s3Client.headObject(HeadObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .build());
+                if (generation(current.metadata()) >= generation) {
+                    return;
+                }
+                condition = "If-Match";
+                version = current.eTag();
+                replacedData = current.metadata().get(StateKeyIndex.DATA_KEY);
+            } catch (NoSuchKeyException e) {
+                // No index yet.
+            }
+
+            String header = condition;
+            String value = version;
+            try {
+                s3Client.putObject(PutObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .metadata(metadata)
+                        .overrideConfiguration(config -> config.putHeader(header, value))
+                        .build(), RequestBody.fromBytes(bytes));
+            } catch (S3Exception e) {
+                if (e.statusCode() != 412 && e.statusCode() != 409) {
+                    throw e;
+                }
+                continue;
+            }
+            if (replacedData != null) {
+                replaced.add(replacedData);
+            }
+            return;
+        }
+    }
+
+    private static long generation(Map<String, String> metadata) {
+        return Long.parseLong(metadata.getOrDefault(GENERATION, "0"));
+    }
+
+    private void deleteKeyIndex() {
+        for (String key : List.of(indexKey, addressIndexKey)) {
+            s3Client.deleteObject(DeleteObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .build());
+        }
+        deleteSegments(listKeys(dataPrefix));
+    }
+
+    // Returns false when there is no key index. The index reads after the first one are conditional on
+    // its ETag, so an index replaced during the lookup fails with 412 instead of mixing versions.
+    private boolean readIndexed(Lookup lookup) {
+        if (cacheDirectory != null) {
+            return readCachedIndex(lookup);
+        }
+
+        int headBytes = StateKeyIndex.HEADER_SIZE + StateKeyIndex.WINDOW_RECORDS * StateKeyIndex.RECORD_SIZE;
+        ResponseBytes<GetObjectResponse> head;
+        try {
+            head = s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(indexKey)
+                    .range("bytes=0-" + (headBytes - 1))
+                    .build());
+        } catch (NoSuchKeyException e) {
+            return false;
+        }
+
+        String indexVersion = head.response().eTag();
+        Map<String, String> metadata = head.response().metadata();
+        byte[] headArray = head.asByteArray();
+        long recordCount = StateKeyIndex.recordCount(headArray);
+        int format = StateKeyIndex.version(headArray);
+        StateKeyIndex.Window prefetched = new StateKeyIndex.Window(0, headArray, StateKeyIndex.HEADER_SIZE,
+                headArray.length - StateKeyIndex.HEADER_SIZE);
+
+        List<long[]> entries = StateKeyIndex.find(recordCount, StateKeyIndex.hash(lookup.key), prefetched, (first, records) -> {
+            long from = StateKeyIndex.HEADER_SIZE + first * StateKeyIndex.RECORD_SIZE;
+            byte[] bytes = s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(indexKey)
+                    .ifMatch(indexVersion)
+                    .range("bytes=" + from + "-" + (from + (long) records * StateKeyIndex.RECORD_SIZE - 1))
+                    .build()).asByteArray();
+            return new StateKeyIndex.Window(first, bytes, 0, bytes.length);
+        });
+
+        for (long[] entry : entries) {
+            byte[] bytes = s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(metadata.get(StateKeyIndex.DATA_KEY))
+                    .range("bytes=" + entry[0] + "-" + (entry[0] + entry[1] - 1))
+                    .build()).asByteArray();
+            lookup.readEntry(bytes, format);
+        }
+
+        addSegmentRows(lookup, metadata.getOrDefault(FOLDED_THROUGH, ""), metadata.getOrDefault(FOLDED_LIST, ""),
+                indexVersion);
+        return true;
+    }
+
+    private boolean readCachedIndex(Lookup lookup) {
+        CachedIndex index;
+        synchronized (this) {
+            if (cachedIndex == null) {
+                cachedIndex = CachedIndex.load(cacheDirectory);
+                if (cachedIndex == null) {
+                    cachedIndex = downloadIndex();
+                }
+            }
+            index = cachedIndex;
+        }
+        if (index == CachedIndex.NONE) {
+            return false;
+        }
+
+        List<long[]> entries = StateKeyIndex.find(index.recordCount, StateKeyIndex.hash(lookup.key), null, (first, records) ->
+                new StateKeyIndex.Window(first, index.index.slice(
+                        StateKeyIndex.HEADER_SIZE + first * StateKeyIndex.RECORD_SIZE,
+                        records * StateKeyIndex.RECORD_SIZE)));
+
+        for (long[] entry : entries) {
+            byte[] bytes = new byte[(int) entry[1]];
+            index.data.get(entry[0], bytes);
+            lookup.readEntry(bytes, index.format);
+        }
+
+        try {
+            addSegmentRows(lookup, index.foldedThrough, index.foldedKey, index.version);
+            return true;
+        } catch (S3Exception e) {
+            if (e.statusCode() == 412 || e.statusCode() == 404) {
+                synchronized (this) {
+                    cachedIndex = null;
+                    Path stamp = cacheDirectory.resolve(CachedIndex.STAMP_FILE);
+                    try {
+                        Files.deleteIfExists(stamp);
+                    } catch (IOException ioException) {
+                        throw new RuntimeException("Error clearing " + stamp, ioException);
+                    }
+                }
+                if (e.statusCode() == 404) {
+                    throw NoSuchKeyException.builder().message("Key index removed").build();
+                }
+            }
+            throw e;
+        }
+    }
+
+    // Downloads the index and its data object into the cache directory. The stamp file, which
+    // holds the index ETag, folded-through and folded list, is written last, so a partial download is
+    // never used.
+    private CachedIndex downloadIndex() {
+        try {
+            Files.createDirectories(cacheDirectory);
+            Files.deleteIfExists(cacheDirectory.resolve(CachedIndex.STAMP_FILE));
+            Path indexFile = cacheDirectory.resolve(StateKeyIndex.INDEX_KEY);
+            Path dataFile = cacheDirectory.resolve(CachedIndex.DATA_FILE);
+            Path indexDownload = cacheDirectory.resolve(StateKeyIndex.INDEX_KEY + "." + UUID.randomUUID() + ".tmp");
+            Path dataDownload = cacheDirectory.resolve(CachedIndex.DATA_FILE + "." + UUID.randomUUID() + ".tmp");
+            try {
+                GetObjectResponse indexResponse;
+                try {
+                    indexResponse = s3Client.getObject(GetObjectRequest.builder()
+                            .bucket(bucket)
+                            .key(indexKey)
+                            .build(), ResponseTransformer.toFile(indexDownload));
+                } catch (NoSuchKeyException e) {
+                    return CachedIndex.NONE;
+                }
+                s3Client.getObject(GetObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(indexResponse.metadata().get(StateKeyIndex.DATA_KEY))
+                        .build(), ResponseTransformer.toFile(dataDownload));
+
+                Files.move(indexDownload, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(dataDownload, dataFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                String stamp = indexResponse.eTag() + "\n" + indexResponse.metadata().getOrDefault(FOLDED_THROUGH, "") + "\n"
+                        + indexResponse.metadata().getOrDefault(FOLDED_LIST, "") + "\n";
+                Files.write(cacheDirectory.resolve(CachedIndex.STAMP_FILE), stamp.getBytes(StandardCharsets.UTF_8));
+            } finally {
+                Files.deleteIfExists(indexDownload);
+                Files.deleteIfExists(dataDownload);
+            }
+            System.out.println("Cached the key index of " + bucket + "/" + prefix + " in " + cacheDirectory);
+            return CachedIndex.load(cacheDirectory);
+        } catch (IOException e) {
+            throw new RuntimeException("Error caching the key index of " + bucket + "/" + prefix, e);
+        }
+    }
+
+    // Adds the key's rows from the segments the index does not include. The HEAD afterwards fails
+    // with 412 if the index was replaced meanwhile, because the compaction behind that may have
+    // deleted segments before they were listed here.
+    private void addSegmentRows(Lookup lookup, String foldedThrough, String foldedKey, String indexVersion) {
+        for (String segmentKey : unfolded(listSegments(), foldedThrough, foldedKey)) {
+            List<List<String>> segmentRows = readMap(segmentKey).get(lookup.key);
+            if (segmentRows != null) {
+                lookup.addRows(segmentRows);
+            }
+        }
+
+        s3Client.headObject(HeadObjectRequest.builder()
+                .bucket(bucket)
+                .key(indexKey)
+                .ifMatch(indexVersion)
+                .build());
+    }
+
+    // Removes the base, a legacy hashmap.ser, the key index and the segments of base, once their
+    // content has been written somewhere else.
+    void deleteState(Base base) {
+        for (String key : List.of(baseKey, legacyBaseKey, indexKey, addressIndexKey)) {
+            s3Client.deleteObject(DeleteObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .build());
+        }
+        deleteFoldedSegments(base);
+        if (!base.foldedKey.isEmpty()) {
+            deleteSegments(List.of(base.foldedKey));
+        }
+        lastBase = Base.NONE;
+    }
+
+    void deleteFoldedSegments(Base base) {
+        deleteSegments(base.folded);
+    }
+
+    // Folds the segments older than the grace period into a new base, with any segment up to the
+    // base's folded-through that the base does not include because it was written late. The base is
+    // written conditionally on the one read, so of two consolidators compacting at once one starts
+    // over, and only the segments the written base includes are deleted. Segments of the old base's
+    // list that are still there, because deleting them failed, are carried into the new list and
+    // deleted again.
+    public synchronized int compact(long graceMillis) {
+        while (true) {
+            List<String> segments = listSegments();
+            Snapshot base = readBase();
+
+            long cutoff = System.currentTimeMillis() - graceMillis;
+            List<String> included = new ArrayList<>(segments);
+            List<String> folded = new ArrayList<>();
+            String foldedThrough = base.base.foldedThrough;
+            try {
+                List<String> unfolded = unfolded(segments, base.base.foldedThrough, base.base.foldedKey);
+                included.removeAll(new HashSet<>(unfolded));
+                for (String segmentKey : unfolded) {
+                    if (segmentKey.compareTo(base.base.foldedThrough) <= 0 || writeTime(segmentKey) < cutoff) {
+                        fold(base.map, readMap(segmentKey));
+                        folded.add(segmentKey);
+                        foldedThrough = later(foldedThrough, segmentKey);
+                    }
+                }
+            } catch (NoSuchKeyException e) {
+                System.out.println("State was compacted while compacting it, compacting again.");
+                continue;
+            }
+
+            if (folded.isEmpty() && included.isEmpty()) {
+                return 0;
+            }
+            included.addAll(folded);
+            Collections.sort(included);
+            if (writeBase(image(base.map, null), base.base, foldedThrough, included) == null) {
+                System.out.println(baseKey + " was replaced by another consolidator while compacting, compacting again.");
+                continue;
+            }
+            if (!folded.isEmpty()) {
+                System.out.println("Compacted " + folded.size() + " segment(s) into " + baseKey);
+            }
+            deleteSegments(included);
+            return folded.size();
+        }
+    }
+
+    private Snapshot readBase() {
+        Snapshot base = readBase(baseKey);
+        return base != null ? base : readBase(legacyBaseKey);
+    }
+
+    // A legacy base is read as version "", so the first base written over it does not replace one
+    // written meanwhile.
+    private Snapshot readBase(String key) {
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .build();
+
+        try (ResponseInputStream<GetObjectResponse> inputStream = s3Client.getObject(getObjectRequest)) {
+            Map<String, String> metadata = inputStream.response().metadata();
+            String version = key.equals(baseKey) ? inputStream.response().eTag() : "";
+            Base base = new Base(version, generation(metadata), metadata.getOrDefault(FOLDED_THROUGH, ""),
+                    metadata.getOrDefault(FOLDED_LIST, ""), List.of());
+            Snapshot snapshot = new Snapshot(
+                    ConsolidatedStateFormat.read(ObjectCodec.fromMetadata(metadata).decode(inputStream)), base);
+            lastBase = base;
+            return snapshot;
+        } catch (NoSuchKeyException e) {
+            if (key.equals(legacyBaseKey)) {
+                lastBase = Base.NONE;
+                return new Snapshot(new HashMap<>(), Base.NONE);
+            }
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading " + key + " from " + bucket, e);
+        }
+    }
+
+    private HashMap<String, List<List<String>>> readMap(String key) {
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .build();
+
+        try (ResponseInputStream<GetObjectResponse> inputStream = s3Client.getObject(getObjectRequest)) {
+            ObjectCodec objectCodec = ObjectCodec.fromMetadata(inputStream.response().metadata());
+            return ConsolidatedStateFormat.read(objectCodec.decode(inputStream));
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading " + key + " from " + bucket, e);
+        }
+    }
+
+    private List<String> listSegments() {
+        return listKeys(segmentPrefix);
+    }
+
+    private List<String> listKeys(String prefix) {
+        List<String> segments = new ArrayList<>();
+        ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                .bucket(bucket)
+                .prefix(prefix)
+                .build();
+
+        ListObjectsV2Response listResponse;
+        do {
+            listResponse = s3Client.listObjectsV2(listRequest);
+            for (S3Object s3Object : listResponse.contents()) {
+                segments.add(s3Object.key());
+            }
+            listRequest = listRequest.toBuilder()
+                    .continuationToken(listResponse.nextContinuationToken())
+                    .build();
+        } while (listResponse.isTruncated());
+
+        return segments;
+    }
+
+    private void deleteSegments(List<String> segmentKeys) {
+        for (int from = 0; from < segmentKeys.size(); from += 1000) {
+            List<ObjectIdentifier> objects = new ArrayList<>();
+            for (String key : segmentKeys.subList(from, Math.min(from + 1000, segmentKeys.size()))) {
+                objects.add(ObjectIdentifier.builder().key(key).build());
+            }
+
+            try {
+                s3Client.deleteObjects(DeleteObjectsRequest.builder()
+                        .bucket(bucket)
+                        .delete(Delete.builder().objects(objects).quiet(true).build())
+                        .build());
+            } catch (S3Exception e) {
+                System.err.println("Error deleting compacted segments, they will be deleted by the next compaction: "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    private static String later(String first, String second) {
+        return first.compareTo(second) >= 0 ? first : second;
+    }
+
+    private long writeTime(String segmentKey) {
+        return Long.parseLong(segmentKey.substring(segmentPrefix.length(), segmentPrefix.length() + 19));
+    }
+
+    static void merge(HashMap<String, List<List<String>>> target, HashMap<String, List<List<String>>> delta) {
+        delta.forEach((key, values) -> target.computeIfAbsent(key, k -> new ArrayList<>()).addAll(values));
+    }
+
+    // Address sketches are unioned into one row per date and direction whether or not roll-up is on.
+    private void fold(HashMap<String, List<List<String>>> target, HashMap<String, List<List<String>>> delta) {
+        delta.forEach((key, values) -> {
+            if (HyperLogLog.isStateKey(key)) {
+                target.put(key, HyperLogLog.union(target.getOrDefault(key, Collections.emptyList()), values));
+            } else if (rollUp) {
+                target.put(key, DailyRollup.merge(target.getOrDefault(key, Collections.emptyList()), values));
+            } else {
+                target.computeIfAbsent(key, k -> new ArrayList<>()).addAll(values);
+            }
+        });
+    }
+
+    private byte[] encode(byte[] serializedMap) {
+        if (codec == ObjectCodec.NONE) {
+            return serializedMap;
+        }
+        try {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            try (OutputStream encodedStream = codec.encode(byteArrayOutputStream)) {
+                encodedStream.write(serializedMap);
+            }
+            return byteArrayOutputStream.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to compress map", e);
+        }
+    }
+
+    static byte[] serialize(HashMap<String, List<List<String>>> map) {
+        return ConsolidatedStateFormat.toBytes(map);
+    }
+
+    // The memory-mapped local copy of a key index and its data object.
+    private static class CachedIndex {
+
+        static final String DATA_FILE = "hashmap.dat";
+        static final String STAMP_FILE = "hashmap.etag";
+        static final CachedIndex NONE = new CachedIndex(null, null, null, null, null, 0, 0);
+
+        final String version;
+        final String foldedThrough;
+        final String foldedKey;
+        final MappedFile index;
+        final MappedFile data;
+        final long recordCount;
+        final int format;
+
+        private CachedIndex(String version, String foldedThrough, String foldedKey, MappedFile index,
+                MappedFile data, long recordCount, int format) {
+            this.version = version;
+            this.foldedThrough = foldedThrough;
+            this.foldedKey = foldedKey;
+            this.index = index;
+            this.data = data;
+            this.recordCount = recordCount;
+            this.format = format;
+        }
+
+        // Returns null when the directory has no complete copy.
+        static CachedIndex load(Path directory) {
+            Path stamp = directory.resolve(STAMP_FILE);
+            if (!Files.exists(stamp)) {
+                return null;
+            }
+            try {
+                String[] lines = new String(Files.readAllBytes(stamp), StandardCharsets.UTF_8).split("\n", -1);
+                MappedFile index = new MappedFile(directory.resolve(StateKeyIndex.INDEX_KEY), MappedFile.WINDOW);
+                MappedFile data = new MappedFile(directory.resolve(DATA_FILE), MappedFile.WINDOW);
+                byte[] header = new byte[StateKeyIndex.HEADER_SIZE];
+                index.get(0, header);
+                return new CachedIndex(lines[0], lines[1], lines[2], index, data, StateKeyIndex.recordCount(header),
+                        StateKeyIndex.version(header));
+            } catch (IOException e) {
+                throw new RuntimeException("Error reading the cached key index in " + directory, e);
+            }
+        }
+    }
+
+    // A read-only file mapped in windows of at most window bytes, since one mapping cannot pass 2 GB.
+    // Positions are longs; a read that crosses two windows is copied.
+    static class MappedFile {
+
+        static final int WINDOW = 1 << 30;
+
+        private final ByteBuffer[] windows;
+        private final int window;
+
+        MappedFile(Path file, int window) throws IOException {
+            this.window = window;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                windows = new ByteBuffer[(int) ((size + window - 1) / window)];
+                for (int i = 0; i < windows.length; i++) {
+                    long from = (long) i * window;
+                    windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(window, size - from));
+                }
+            }
+        }
+
+        void get(long position, byte[] bytes) {
+            int copied = 0;
+            while (copied < bytes.length) {
+                long at = position + copied;
+                ByteBuffer buffer = windows[(int) (at / window)];
+                int offset = (int) (at % window);
+                int length = Math.min(bytes.length - copied, buffer.limit() - offset);
+                buffer.get(offset, bytes, copied, length);
+                copied += length;
+            }
+        }
+
+        ByteBuffer slice(long position, int length) {
+            if (length > 0 && position / window == (position + length - 1) / window) {
+                return windows[(int) (position / window)].slice((int) (position % window), length);
+            }
+            byte[] bytes = new byte[length];
+            get(position, bytes);
+            return ByteBuffer.wrap(bytes);
+        }
+    }
+
+    // What a lookup keeps from the index entries of one key and the rows of the segments after them.
+    private abstract static class Lookup {
+
+        final String key;
+
+        Lookup(String key) {
+            this.key = key;
+        }
+
+        // format is the key index version the entry was written with.
+        void readEntry(byte[] bytes, int format) {
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+                entry(in, format < 2 ? -1 : in.readInt());
+            } catch (IOException e) {
+                throw new RuntimeException("Error reading " + key + " from a key index entry", e);
+            }
+        }
+
+        // in is at the entry's statistics, or at its rows when statisticsLength is -1.
+        abstract void entry(DataInputStream in, int statisticsLength) throws IOException;
+
+        abstract void addRows(List<List<String>> rows);
+    }
+
+    private static class RowLookup extends Lookup {
+
+        List<List<String>> rows;
+
+        RowLookup(String key) {
+            super(key);
+        }
+
+        @Override
+        void entry(DataInputStream in, int statisticsLength) throws IOException {
+            if (statisticsLength > 0) {
+                in.skipBytes(statisticsLength);
+            }
+            List<List<String>> found = ConsolidatedStateFormat.read(in).get(key);
+            if (found != null) {
+                rows = new ArrayList<>(found);
+            }
+        }
+
+        @Override
+        void addRows(List<List<String>> segmentRows) {
+            rows = rows == null ? new ArrayList<>() : rows;
+            rows.addAll(segmentRows);
+        }
+    }
+
+    private static class StatisticsLookup extends Lookup {
+
+        KeyStatistics statistics;
+
+        StatisticsLookup(String key) {
+            super(key);
+        }
+
+        @Override
+        void entry(DataInputStream in, int statisticsLength) throws IOException {
+            if (statisticsLength < 0) {
+                List<List<String>> found = ConsolidatedStateFormat.read(in).get(key);
+                if (found != null) {
+                    statistics = KeyStatistics.of(found);
+                }
+            } else if (in.readUTF().equals(key)) {
+                statistics = KeyStatistics.read(in);
+            }
+        }
+
+        @Override
+        void addRows(List<List<String>> segmentRows) {
+            statistics = statistics == null ? new KeyStatistics() : statistics;
+            for (List<String> row : segmentRows) {
+                statistics.add(row);
+            }
+        }
+    }
+
+    static class Image {
+
+        final byte[] serializedMap;
+        final StateKeyIndex.Built keyIndex;
+
+        Image(byte[] serializedMap, StateKeyIndex.Built keyIndex) {
+            this.serializedMap = serializedMap;
+            this.keyIndex = keyIndex;
+        }
+    }
+
+    static class Snapshot {
+
+        final HashMap<String, List<List<String>>> map;
+        final Base base;
+
+        Snapshot(HashMap<String, List<List<String>>> map, Base base) {
+            this.map = map;
+            this.base = base;
+        }
+    }
+
+    // A base as read or written: its ETag, "" when there is none, its generation, which counts the
+    // bases written before it, and its folded-through and list of folded segments. folded holds the
+    // segments of the list that may still exist; it is empty for a base read with readBase(), whose
+    // list is read only when needed.
+    static class Base {
+
+        static final Base NONE = new Base("", 0, "", "", List.of());
+
+        final String version;
+        final long generation;
+        final String foldedThrough;
+        final String foldedKey;
+        final List<String> folded;
+
+        Base(String version, long generation, String foldedThrough, String foldedKey, List<String> folded) {
+            this.version = version;
+            this.generation = generation;
+            this.foldedThrough = foldedThrough;
+            this.foldedKey = foldedKey;
+            this.folded = folded;
+        }
+
+        Base including(String foldedThrough, List<String> folded) {
+            return new Base(version, generation, foldedThrough, foldedKey, folded);
+        }
+    }
+}
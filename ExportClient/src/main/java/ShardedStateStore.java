@@ -0,0 +1,374 @@
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+// Splits the consolidated state into shards by hash of the "source,destination" key. Each shard is
+// a SegmentedStateStore under shards/NNNN/, so a file only writes to the shards it touches and a
+// lookup only reads one shard. manifest.json holds the shard count and the ETag and generation of
+// every shard's base. A bucket without a manifest is read as one unsharded store until
+// migrateUnsharded() runs.
+public class ShardedStateStore {
+
+    public static final String MANIFEST_KEY = "manifest.json";
+    public static final String SHARD_PREFIX = "shards/";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final int MAX_SHARD_THREADS = 16;
+
+    private final S3Client s3Client;
+    private final String bucket;
+    private final ObjectCodec codec;
+    private final ExecutorService executor;
+    private volatile SegmentedStateStore[] shards;
+    private volatile boolean keyIndex;
+    private volatile boolean rollUp;
+    private volatile Path cacheDirectory;
+
+    public ShardedStateStore(S3Client s3Client, String bucket, ObjectCodec codec) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.codec = codec;
+        this.executor = Executors.newFixedThreadPool(MAX_SHARD_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "state-shard");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Manifest manifest = readManifest();
+        this.shards = manifest == null
+                ? new SegmentedStateStore[] { new SegmentedStateStore(s3Client, bucket, codec, "") }
+                : openShards(manifest.shardCount);
+    }
+
+    // See SegmentedStateStore.setKeyIndex().
+    public void setKeyIndex(boolean keyIndex) {
+        this.keyIndex = keyIndex;
+        for (SegmentedStateStore shard : shards) {
+            shard.setKeyIndex(keyIndex);
+        }
+    }
+
+    // See SegmentedStateStore.setRollUp().
+    public void setRollUp(boolean rollUp) {
+        this.rollUp = rollUp;
+        for (SegmentedStateStore shard : shards) {
+            shard.setRollUp(rollUp);
+        }
+    }
+
+    // See SegmentedStateStore.setCacheDirectory().
+    public void setCacheDirectory(Path directory) {
+        this.cacheDirectory = directory;
+        for (SegmentedStateStore shard : shards) {
+            shard.setCacheDirectory(directory);
+        }
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    public int shardOf(String key) {
+        return Math.floorMod(key.hashCode(), shards.length);
+    }
+
+    // Splits the unsharded state (hashmap.bin or hashmap.ser and its segments) into shardCount shards
+    // and writes the first manifest. It does nothing once a manifest exists, whatever its shard count.
+    public synchronized void migrateUnsharded(int shardCount) {
+        if (readManifest() != null) {
+            return;
+        }
+
+        SegmentedStateStore unsharded = shards[0];
+        SegmentedStateStore.Snapshot snapshot = unsharded.readSnapshot();
+        SegmentedStateStore[] sharded = openShards(shardCount);
+        List<HashMap<String, List<List<String>>>> parts = split(snapshot.map, shardCount);
+
+        runOnShards(shardCount, shard -> {
+            if (!parts.get(shard).isEmpty()) {
+                sharded[shard].writeBase(sharded[shard].image(parts.get(shard), null), null, "", List.of());
+            }
+            return null;
+        });
+
+        shards = sharded;
+        if (!writeManifest(true)) {
+            shards = openShards(readManifest().shardCount);
+            System.out.println("Another poller split the state first, using its " + MANIFEST_KEY);
+            return;
+        }
+        unsharded.deleteState(snapshot.base);
+        System.out.println("Split " + snapshot.map.size() + " keys into " + shardCount + " shards");
+    }
+
+    public int appendSegment(HashMap<String, List<List<String>>> batch) {
+        List<HashMap<String, List<List<String>>>> parts = split(batch, shards.length);
+        List<Integer> touched = new ArrayList<>();
+        for (int shard = 0; shard < parts.size(); shard++) {
+            if (!parts.get(shard).isEmpty()) {
+                touched.add(shard);
+            }
+        }
+
+        runOnShards(touched, shard -> shards[shard].appendSegment(parts.get(shard)));
+        return touched.size();
+    }
+
+    public HashMap<String, List<List<String>>> read() {
+        HashMap<String, List<List<String>>> map = new HashMap<>();
+        for (SegmentedStateStore.Snapshot snapshot : readSnapshots()) {
+            map.putAll(snapshot.map);
+        }
+        return map;
+    }
+
+    public HashMap<String, List<List<String>>> readShard(int shard) {
+        return shards[shard].read();
+    }
+
+    public List<List<String>> read(String key) {
+        return shards[shardOf(key)].read(key);
+    }
+
+    public KeyStatistics readStatistics(String key) {
+        return shards[shardOf(key)].readStatistics(key);
+    }
+
+    // Passes every IPv4 pair whose source is in sources and whose destination is in destinations to
+    // consumer, a shard at a time as the shards' queries finish, see SegmentedStateStore.query().
+    public void query(AddressIndex.Range sources, AddressIndex.Range destinations,
+            BiConsumer<String, List<List<String>>> consumer) {
+        List<Future<HashMap<String, List<List<String>>>>> futures = new ArrayList<>();
+        for (SegmentedStateStore shard : shards) {
+            futures.add(executor.submit(() -> shard.query(sources, destinations)));
+        }
+        for (Future<HashMap<String, List<List<String>>>> future : futures) {
+            await(future).forEach(consumer);
+        }
+    }
+
+    SegmentedStateStore.Snapshot[] readSnapshots() {
+        List<SegmentedStateStore.Snapshot> snapshots = runOnShards(shards.length, shard -> shards[shard].readSnapshot());
+        return snapshots.toArray(new SegmentedStateStore.Snapshot[0]);
+    }
+
+    SegmentedStateStore.Image image(int shard, HashMap<String, List<List<String>>> map,
+            Map<String, KeyStatistics> statistics) {
+        return shards[shard].image(map, statistics);
+    }
+
+    boolean keyIndex() {
+        return keyIndex;
+    }
+
+    boolean rollUp() {
+        return rollUp;
+    }
+
+    // Writes the given shards' bases in parallel, each conditional on the shard's entry in bases,
+    // which it replaces with the base written, then the manifest.
+    void writeBases(Map<Integer, SegmentedStateStore.Image> images, SegmentedStateStore.Base[] bases) {
+        runOnShards(new ArrayList<>(images.keySet()), shard -> {
+            SegmentedStateStore.Base written = shards[shard].writeBase(images.get(shard), bases[shard],
+                    bases[shard].foldedThrough, bases[shard].folded);
+            if (written == null) {
+                throw new RuntimeException("The base of state shard " + shard
+                        + " was replaced by another consolidator; only one poller may keep the state in memory");
+            }
+            bases[shard] = written;
+            return null;
+        });
+        writeManifest(false);
+    }
+
+    void deleteFoldedSegments(SegmentedStateStore.Base[] bases) {
+        runOnShards(shards.length, shard -> {
+            shards[shard].deleteFoldedSegments(bases[shard]);
+            return null;
+        });
+    }
+
+    public synchronized int compact(long graceMillis) {
+        int folded = 0;
+        for (int count : runOnShards(shards.length, shard -> shards[shard].compact(graceMillis))) {
+            folded += count;
+        }
+        if (folded > 0) {
+            writeManifest(false);
+        }
+        return folded;
+    }
+
+    static List<HashMap<String, List<List<String>>>> split(Map<String, List<List<String>>> map, int shardCount) {
+        List<HashMap<String, List<List<String>>>> parts = new ArrayList<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            parts.add(new HashMap<>());
+        }
+        map.forEach((key, rows) -> parts.get(Math.floorMod(key.hashCode(), shardCount)).put(key, rows));
+        return parts;
+    }
+
+    private SegmentedStateStore[] openShards(int shardCount) {
+        SegmentedStateStore[] opened = new SegmentedStateStore[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            opened[shard] = new SegmentedStateStore(s3Client, bucket, codec, String.format("%s%04d/", SHARD_PREFIX, shard));
+            opened[shard].setKeyIndex(keyIndex);
+            opened[shard].setRollUp(rollUp);
+            opened[shard].setCacheDirectory(cacheDirectory);
+        }
+        return opened;
+    }
+
+    private Manifest readManifest() {
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(MANIFEST_KEY)
+                .build();
+
+        try {
+            return MAPPER.readValue(s3Client.getObjectAsBytes(getObjectRequest).asByteArray(), Manifest.class);
+        } catch (NoSuchKeyException e) {
+            return null;
+        } catch (Exception e) {
+            throw new RuntimeException("Error reading " + MANIFEST_KEY + " from " + bucket, e);
+        }
+    }
+
+    // Puts the manifest conditionally on the one read, re-reading it on 412, so pollers writing it at
+    // once do not undo each other's entries. A shard's entry is replaced only by a base of a later
+    // generation than the one it names. The first manifest is put only if there is none yet, and
+    // false is returned when another poller wrote one first.
+    private synchronized boolean writeManifest(boolean first) {
+        while (true) {
+            Manifest current = null;
+            String currentVersion = null;
+            if (!first) {
+                try {
+                    ResponseBytes<GetObjectResponse> bytes = s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                            .bucket(bucket)
+                            .key(MANIFEST_KEY)
+                            .build());
+                    current = MAPPER.readValue(bytes.asByteArray(), Manifest.class);
+                    currentVersion = bytes.response().eTag();
+                } catch (NoSuchKeyException e) {
+                    // Written again from this store's shards.
+                } catch (Exception e) {
+                    throw new RuntimeException("Error reading " + MANIFEST_KEY + " from " + bucket, e);
+                }
+            }
+
+            Manifest manifest = new Manifest();
+            manifest.shardCount = shards.length;
+            manifest.updatedAt = System.currentTimeMillis();
+            for (int shard = 0; shard < shards.length; shard++) {
+                SegmentedStateStore.Base base = shards[shard].lastBase();
+                if (current != null && shard < current.shardVersions.size() && current.generation(shard) >= base.generation) {
+                    manifest.shardVersions.add(current.shardVersions.get(shard));
+                    manifest.shardGenerations.add(current.generation(shard));
+                } else {
+                    manifest.shardVersions.add(base.version);
+                    manifest.shardGenerations.add(base.generation);
+                }
+            }
+
+            String condition = currentVersion == null ? "If-None-Match" : "If-Match";
+            String value = currentVersion == null ? "*" : currentVersion;
+            try {
+                PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(MANIFEST_KEY)
+                        .contentType("application/json")
+                        .overrideConfiguration(config -> config.putHeader(condition, value))
+                        .build();
+
+                s3Client.putObject(putObjectRequest, RequestBody.fromBytes(MAPPER.writeValueAsBytes(manifest)));
+                return true;
+            } catch (S3Exception e) {
+                if (e.statusCode() != 412 && e.statusCode() != 409) {
+                    throw e;
+                }
+                if (first) {
+                    return false;
+                }
+                System.out.println(MANIFEST_KEY + " was rewritten by another poller, merging again.");
+            } catch (Exception e) {
+                throw new RuntimeException("Error writing " + MANIFEST_KEY + " to " + bucket, e);
+            }
+        }
+    }
+
+    private <T> List<T> runOnShards(int shardCount, ShardTask<T> task) {
+        List<Integer> all = new ArrayList<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            all.add(shard);
+        }
+        return runOnShards(all, task);
+    }
+
+    private <T> List<T> runOnShards(List<Integer> shardIds, ShardTask<T> task) {
+        List<Future<T>> futures = new ArrayList<>();
+        for (int shard : shardIds) {
+            Callable<T> call = () -> task.run(shard);
+            futures.add(executor.submit(call));
+        }
+
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : futures) {
+            results.add(await(future));
+        }
+        return results;
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while accessing state shards", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Error accessing state shard: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private interface ShardTask<T> {
+
+        T run(int shard) throws Exception;
+    }
+
+    public static class Manifest {
+
+        public int formatVersion = 1;
+        public int shardCount;
+        public long updatedAt;
+        public List<String> shardVersions = new ArrayList<>();
+        public List<Long> shardGenerations = new ArrayList<>();
+
+        // 0 for manifests written before there were generations.
+        long generation(int shard) {
+            return shard < shardGenerations.size() ? shardGenerations.get(shard) : 0;
+        }
+    }
+}
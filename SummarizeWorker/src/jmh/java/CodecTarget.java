@@ -0,0 +1,24 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import benchmark.Codec;
+
+public class CodecTarget implements Codec {
+
+    private final ObjectCodec codec;
+
+    public CodecTarget(String codec) {
+        this.codec = ObjectCodec.valueOf(codec);
+    }
+
+    @Override
+    public OutputStream encode(OutputStream outputStream) throws IOException {
+        return codec.encode(outputStream);
+    }
+
+    @Override
+    public InputStream decode(InputStream inputStream) throws IOException {
+        return codec.decode(inputStream);
+    }
+}
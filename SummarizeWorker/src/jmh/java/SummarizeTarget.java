@@ -0,0 +1,18 @@
+
+import java.io.InputStream;
+
+import benchmark.Summarizer;
+
+public class SummarizeTarget implements Summarizer {
+
+    private final SummarizeWorker worker;
+
+    public SummarizeTarget(String engine) {
+        this.worker = new SummarizeWorker(SummarizeWorker.Engine.valueOf(engine));
+    }
+
+    @Override
+    public String summarize(InputStream inputStream) throws Exception {
+        return worker.processCsv(inputStream);
+    }
+}
@@ -0,0 +1,16 @@
+package benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public interface Codec {
+
+    OutputStream encode(OutputStream outputStream) throws IOException;
+
+    InputStream decode(InputStream inputStream) throws IOException;
+
+    static Codec load(String codec) throws ReflectiveOperationException {
+        return (Codec) Class.forName("CodecTarget").getDeclaredConstructor(String.class).newInstance(codec);
+    }
+}
@@ -1,15 +1,37 @@
-import java.io.ByteArrayInputStream;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
 import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
 import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.S3Object;
 
@@ -19,79 +41,377 @@ public class BucketLoop {
     private final String sourceBucket;
     private final String destinationBucket;
     private final SummarizeWorker worker;
+    private final RangedObjectSummarizer rangedSummarizer;
+    private final int filesInFlight;
+    private final long leaseMillis;
+    private final ObjectCodec outputCodec;
+    private final LeaseStore leaseStore;
+    private final ScheduledExecutorService heartbeats;
+    // Keys another instance holds a lease on, with the time after which claiming them is tried again.
+    private final Map<String, Long> leasedElsewhere = new ConcurrentHashMap<>();
+    // The key the next listing starts after, or null for the start of the bucket.
+    private String listFrom;
     private volatile boolean isRunning = true;
+    private int heavyHitters;
+    private boolean fanSketches;
 
     public BucketLoop(String sourceBucket, String destinationBucket) {
-        this.s3Client = S3Client.builder().build();
+        this(sourceBucket, destinationBucket, SummarizeWorker.Engine.FASTCSV);
+    }
+
+    public BucketLoop(String sourceBucket, String destinationBucket, SummarizeWorker.Engine engine) {
+        this(sourceBucket, destinationBucket, engine, 1, RangedObjectSummarizer.DEFAULT_RANGE_SIZE, 1);
+    }
+
+    public BucketLoop(String sourceBucket, String destinationBucket, SummarizeWorker.Engine engine,
+            int downloadConnections, long downloadRangeSize, int filesInFlight) {
+        this(S3Client.builder().build(), sourceBucket, destinationBucket, engine, downloadConnections, downloadRangeSize,
+                filesInFlight, 0, ObjectCodec.NONE);
+    }
+
+    public BucketLoop(S3Client s3Client, String sourceBucket, String destinationBucket, SummarizeWorker.Engine engine,
+            int downloadConnections, long downloadRangeSize, int filesInFlight, long leaseMillis, ObjectCodec outputCodec) {
+        this.s3Client = s3Client;
         this.sourceBucket = sourceBucket;
         this.destinationBucket = destinationBucket;
-        this.worker = new SummarizeWorker();
+        this.worker = new SummarizeWorker(engine);
+        this.rangedSummarizer = new RangedObjectSummarizer(s3Client, downloadConnections, downloadRangeSize,
+                Charset.defaultCharset());
+        this.filesInFlight = filesInFlight;
+        this.leaseMillis = leaseMillis;
+        this.outputCodec = outputCodec;
+        this.leaseStore = leaseMillis > 0 ? new S3LeaseStore(s3Client, sourceBucket, leaseMillis) : null;
+        this.heartbeats = leaseMillis > 0 ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lease-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    // Writes a report of the size heaviest sources, destinations and pairs next to each summary, see
+    // HeavyHitters. 0, the default, writes none.
+    public void reportHeavyHitters(int size) {
+        this.heavyHitters = size;
+    }
+
+    // Writes the HyperLogLog sketches of each address's distinct peers per day next to each summary,
+    // see AddressSketches.
+    public void writeFanSketches(boolean fanSketches) {
+        this.fanSketches = fanSketches;
     }
 
     public void start() {
         System.out.println("Starting S3 File Processor...");
 
+        if (filesInFlight > 1) {
+            startPipelined();
+            return;
+        }
+
         while (isRunning) {
             try {
                 
-                ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
-                        .bucket(sourceBucket)
-                        .maxKeys(1) 
-                        .build();
+                List<S3Object> files = listFiles(leaseStore == null ? 1 : 1000);
 
-                ListObjectsV2Response listResponse = s3Client.listObjectsV2(listRequest);
+                if (files.isEmpty()) {
+                    System.out.println("Source bucket is empty. Waiting...");
+                    Thread.sleep(5000); 
+                } else if (leaseStore == null) {
+                    processFile(files.get(0), null);
+                } else if (!processFirstClaimable(files)) {
+                    Thread.sleep(1000);
+                }
 
-                if (!listResponse.contents().isEmpty()) {
-                    
-                    S3Object fileToProcess = listResponse.contents().get(0);
-                    String fileKey = fileToProcess.key();
+            } catch (Exception e) {
+                System.err.println("Error in file processing loop: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void startPipelined() {
+        ExecutorService executor = Executors.newFixedThreadPool(filesInFlight, runnable -> {
+            Thread thread = new Thread(runnable, "file-pipeline");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore slots = new Semaphore(filesInFlight);
+        Set<String> claimed = ConcurrentHashMap.newKeySet();
+        // Keys that were processed and deleted, with the listing count at completion. A listing
+        // that started earlier may still return them, so they stay claimed until a later one doesn't.
+        Map<String, Long> finished = new ConcurrentHashMap<>();
+        AtomicLong listings = new AtomicLong();
 
-                    System.out.println("Processing file: " + fileKey);
+        try {
+            while (isRunning) {
+                try {
+                    long listing = listings.incrementAndGet();
 
-                    GetObjectRequest getObjectRequest = GetObjectRequest.builder()
-                            .bucket(sourceBucket)
-                            .key(fileKey)
-                            .build();
+                    List<S3Object> files = listFiles(1000);
 
-                    String processedCsv = null;
+                    Set<String> listed = new HashSet<>();
+                    int started = 0;
+                    for (S3Object fileToProcess : files) {
+                        String fileKey = fileToProcess.key();
+                        listed.add(fileKey);
+                        if (!isRunning || finished.containsKey(fileKey) || !claimed.add(fileKey)) {
+                            continue;
+                        }
 
-                    
-                    try (ResponseInputStream<GetObjectResponse> s3ObjectResponse = s3Client.getObject(getObjectRequest)) {
-                        
-                        processedCsv = worker.processCsv(s3ObjectResponse);
-                    } catch (Exception e) {
-                        System.err.println("Error processing file: " + e.getMessage());
-                        e.printStackTrace();
+                        try {
+                            slots.acquire();
+                        } catch (InterruptedException e) {
+                            claimed.remove(fileKey);
+                            throw e;
+                        }
+                        // The lease is claimed here rather than in the task, so started counts only
+                        // files this instance got and the loop backs off while others hold the rest.
+                        LeaseStore.Lease lease = leaseStore == null ? null : claim(fileKey);
+                        if (leaseStore != null && lease == null) {
+                            claimed.remove(fileKey);
+                            slots.release();
+                            continue;
+                        }
+                        started++;
+
+                        executor.submit(() -> {
+                            try {
+                                if (processFile(fileToProcess, lease)) {
+                                    finished.put(fileKey, listings.get());
+                                }
+                            } finally {
+                                claimed.remove(fileKey);
+                                slots.release();
+                            }
+                        });
                     }
 
-                    String outputKey = "daily_summary_" + java.time.LocalDate.now() + "_" + fileKey;
-                    
-                    sendFileToAnotherBucket(processedCsv, outputKey);
+                    finished.entrySet().removeIf(entry -> entry.getValue() < listing && !listed.contains(entry.getKey()));
 
-                    deleteFileFromSourceBucket(fileKey);
+                    if (files.isEmpty() && claimed.isEmpty()) {
+                        System.out.println("Source bucket is empty. Waiting...");
+                        Thread.sleep(5000);
+                    } else if (started == 0) {
+                        Thread.sleep(500);
+                    }
 
-                } else {
-                    System.out.println("Source bucket is empty. Waiting...");
-                    Thread.sleep(5000); 
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    System.err.println("Error in file processing loop: " + e.getMessage());
+                    e.printStackTrace();
                 }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // With leases, each listing starts after a random key of the previous one when that filled its
+    // page, and wraps around to the start of the bucket, so instances spread over the whole bucket
+    // instead of racing for the same first page.
+    private List<S3Object> listFiles(int maxKeys) {
+        String from = leaseStore == null ? null : listFrom;
+        List<S3Object> files = listFiles(from, maxKeys);
+        if (from != null && files.size() < maxKeys) {
+            for (S3Object file : listFiles(null, maxKeys - files.size())) {
+                if (file.key().compareTo(from) <= 0) {
+                    files.add(file);
+                }
+            }
+        }
+
+        if (leaseStore != null) {
+            Set<String> keys = new HashSet<>();
+            for (S3Object file : files) {
+                keys.add(file.key());
+            }
+            leasedElsewhere.keySet().retainAll(keys);
+            Collections.shuffle(files);
+            listFrom = files.size() == maxKeys ? files.get(0).key() : null;
+        }
+        return files;
+    }
+
+    // Up to maxKeys files after startAfter. The lease markers sort before most keys and could fill
+    // whole pages, so a page that ends in markers is followed by a listing after all of them.
+    private List<S3Object> listFiles(String startAfter, int maxKeys) {
+        List<S3Object> files = new ArrayList<>();
+        ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                .bucket(sourceBucket)
+                .maxKeys(maxKeys)
+                .startAfter(startAfter)
+                .build();
+
+        while (true) {
+            ListObjectsV2Response listResponse = s3Client.listObjectsV2(listRequest);
+            String lastKey = null;
+            for (S3Object file : listResponse.contents()) {
+                lastKey = file.key();
+                if (!lastKey.startsWith(S3LeaseStore.LEASE_PREFIX) && files.size() < maxKeys) {
+                    files.add(file);
+                }
+            }
+            if (files.size() >= maxKeys || !listResponse.isTruncated()) {
+                return files;
+            }
+
+            if (lastKey != null && lastKey.startsWith(S3LeaseStore.LEASE_PREFIX)) {
+                listRequest = listRequest.toBuilder()
+                        .continuationToken(null)
+                        .startAfter(S3LeaseStore.AFTER_LEASES)
+                        .build();
+            } else {
+                listRequest = listRequest.toBuilder()
+                        .continuationToken(listResponse.nextContinuationToken())
+                        .build();
+            }
+        }
+    }
+
+    private boolean processFirstClaimable(List<S3Object> files) {
+        for (S3Object fileToProcess : files) {
+            LeaseStore.Lease lease = claim(fileToProcess.key());
+            if (lease != null) {
+                processFile(fileToProcess, lease);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private LeaseStore.Lease claim(String fileKey) {
+        Long retryAt = leasedElsewhere.get(fileKey);
+        if (retryAt != null && retryAt > System.currentTimeMillis()) {
+            return null;
+        }
+
+        try {
+            LeaseStore.Lease lease = leaseStore.tryAcquire(fileKey);
+            if (lease == null) {
+                leasedElsewhere.put(fileKey, System.currentTimeMillis() + leaseMillis / 4);
+            } else {
+                leasedElsewhere.remove(fileKey);
+            }
+            return lease;
+        } catch (Exception e) {
+            System.err.println("Error claiming file " + fileKey + ": " + e.getMessage());
+            return null;
+        }
+    }
 
+    private boolean processFile(S3Object fileToProcess, LeaseStore.Lease lease) {
+        String fileKey = fileToProcess.key();
+        AtomicBoolean leaseLost = new AtomicBoolean(false);
+        ScheduledFuture<?> heartbeat = lease == null ? null : heartbeats.scheduleAtFixedRate(
+                () -> renewLease(lease, leaseLost), leaseMillis / 3, leaseMillis / 3, TimeUnit.MILLISECONDS);
+
+        try {
+            System.out.println("Processing file: " + fileKey);
+
+            GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                    .bucket(sourceBucket)
+                    .key(fileKey)
+                    .build();
+
+            String outputKey = "daily_summary_" + java.time.LocalDate.now() + "_" + fileKey;
+            S3MultipartOutputStream outputStream = new S3MultipartOutputStream(s3Client, destinationBucket, outputKey,
+                    "text/csv", outputCodec.metadata());
+
+            try {
+                OutputStream encodedStream = outputCodec.encode(outputStream);
+                HeavyHitters report = heavyHitters > 0 ? new HeavyHitters(heavyHitters) : null;
+                AddressSketches sketches = fanSketches ? new AddressSketches() : null;
+                SummaryListener listener = SummaryListener.both(
+                        report == null ? null : (date, source, destination, duration, packets) -> report.add(date, source, destination, duration, packets),
+                        sketches == null ? null : (date, source, destination, duration, packets) -> sketches.add(date, source, destination));
+                if (rangedSummarizer.shouldSplit(fileToProcess.size())) {
+                    DailyTrafficTable dailyTraffic = rangedSummarizer.summarize(sourceBucket, fileKey, fileToProcess.size());
+                    worker.writeOutput(dailyTraffic, encodedStream, listener);
+                } else {
+                    try (ResponseInputStream<GetObjectResponse> s3ObjectResponse = s3Client.getObject(getObjectRequest)) {
+                        worker.processCsv(s3ObjectResponse, encodedStream, listener);
+                    }
+                }
+                if (leaseLost.get()) {
+                    throw new IllegalStateException("Lease on " + fileKey + " was lost to another instance");
+                }
+                encodedStream.close();
+                // Written after the summary is complete, so a report never exists without its summary.
+                if (report != null) {
+                    writeReport(HeavyHitters.reportKey(outputKey), report);
+                }
+                if (sketches != null) {
+                    writeSketches(AddressSketches.sketchKey(outputKey), sketches);
+                }
+            } catch (NoSuchKeyException e) {
+                outputStream.abort();
+                System.out.println("File was already processed by another instance: " + fileKey);
+                return true;
             } catch (Exception e) {
-                System.err.println("Error in file processing loop: " + e.getMessage());
+                outputStream.abort();
+                System.err.println("Error processing file: " + e.getMessage());
                 e.printStackTrace();
+                return false;
+            }
+
+            deleteFileFromSourceBucket(fileKey);
+            return true;
+
+        } finally {
+            if (heartbeat != null) {
+                heartbeat.cancel(false);
+                releaseLease(lease, leaseLost);
             }
         }
     }
 
-    private void sendFileToAnotherBucket(String content, String key) throws IOException {
-        byte[] contentBytes = content.getBytes();
-        try (InputStream inputStream = new ByteArrayInputStream(contentBytes)) {
-            PutObjectRequest putRequest = PutObjectRequest.builder()
-                    .bucket(destinationBucket)
-                    .key(key)
-                    .contentType("text/csv")
-                    .build();
+    private void writeReport(String reportKey, HeavyHitters report) throws IOException {
+        StringBuilder text = new StringBuilder();
+        report.write(text);
+
+        PutObjectRequest putRequest = PutObjectRequest.builder()
+                .bucket(destinationBucket)
+                .key(reportKey)
+                .contentType("text/csv")
+                .build();
+
+        s3Client.putObject(putRequest, RequestBody.fromString(text.toString(), StandardCharsets.UTF_8));
+    }
 
-            s3Client.putObject(putRequest, RequestBody.fromBytes(contentBytes));
+    // One sketch row per address, direction and day can add up, so these stream through the output
+    // codec like the summary does.
+    private void writeSketches(String sketchKey, AddressSketches sketches) throws IOException {
+        S3MultipartOutputStream outputStream = new S3MultipartOutputStream(s3Client, destinationBucket, sketchKey,
+                "text/csv", outputCodec.metadata());
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(outputCodec.encode(outputStream), StandardCharsets.UTF_8), 65536)) {
+            sketches.write(writer);
+        } catch (IOException | RuntimeException e) {
+            outputStream.abort();
+            throw e;
+        }
+    }
+
+    private void renewLease(LeaseStore.Lease lease, AtomicBoolean leaseLost) {
+        try {
+            if (!leaseLost.get() && !leaseStore.renew(lease)) {
+                leaseLost.set(true);
+                System.err.println("Lost lease on " + lease.getKey());
+            }
+        } catch (Exception e) {
+            System.err.println("Error renewing lease on " + lease.getKey() + ": " + e.getMessage());
+        }
+    }
+
+    private void releaseLease(LeaseStore.Lease lease, AtomicBoolean leaseLost) {
+        if (leaseLost.get()) {
+            return;
+        }
+        try {
+            leaseStore.release(lease);
+        } catch (Exception e) {
+            System.err.println("Error releasing lease on " + lease.getKey() + ": " + e.getMessage());
         }
     }
 
@@ -122,8 +442,25 @@ public class BucketLoop {
     public static void main(String[] args) {
         String sourceBucket = "s3-raw-data-ec2-021095";
         String destinationBucket = "s3-summarized-data-ec2-021095";
+        SummarizeWorker.Engine engine = SummarizeWorker.Engine.valueOf(System.getProperty("summarize.engine", "FASTCSV"));
+        int downloadConnections = Integer.getInteger("summarize.download.connections", 1);
+        long downloadRangeSize = Long.getLong("summarize.download.rangeMb", 16) * 1024 * 1024;
+        int filesInFlight = Integer.getInteger("summarize.files.inFlight", 1);
+        long leaseMillis = Long.getLong("summarize.lease.seconds", 0) * 1000;
+        ObjectCodec outputCodec = ObjectCodec.fromName(System.getProperty("summarize.output.codec"));
+        int heavyHitters = Integer.getInteger("summarize.heavyHitters", 0);
+        boolean fanSketches = Boolean.getBoolean("summarize.fanSketches");
+
+        S3ClientBuilder s3Builder = S3Client.builder();
+        String endpoint = System.getProperty("summarize.s3.endpoint");
+        if (endpoint != null) {
+            s3Builder.endpointOverride(URI.create(endpoint)).forcePathStyle(true);
+        }
 
-        BucketLoop app = new BucketLoop(sourceBucket, destinationBucket);
+        BucketLoop app = new BucketLoop(s3Builder.build(), sourceBucket, destinationBucket, engine, downloadConnections,
+                downloadRangeSize, filesInFlight, leaseMillis, outputCodec);
+        app.reportHeavyHitters(heavyHitters);
+        app.writeFanSketches(fanSketches);
         app.start();
     }
 }
@@ -0,0 +1,374 @@
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+public class FlowRecordParser {
+
+    private static final DateTimeFormatter INPUT_FORMATTER = new DateTimeFormatterBuilder()
+            .appendPattern("dd/MM/yyyy hh:mm:ss a")
+            .toFormatter(Locale.ENGLISH);
+
+    private static final int SOURCE_IP = 1;
+    private static final int DESTINATION_IP = 3;
+    private static final int TIMESTAMP = 6;
+    private static final int FLOW_DURATION = 7;
+    private static final int FORWARD_PACKETS = 8;
+    private static final int MIN_FIELDS = 9;
+
+    private static final int TIMESTAMP_LENGTH = "dd/MM/yyyy hh:mm:ss AM".length();
+
+    private final DailyTrafficTable dailyTraffic;
+    private final Charset charset;
+
+    private final int[] fieldStarts = new int[MIN_FIELDS];
+    private final int[] fieldEnds = new int[MIN_FIELDS];
+
+    private final byte[] lastDate = new byte[10];
+    private long lastEpochDay;
+    private boolean hasLastDate = false;
+
+    private boolean headerSkipped = false;
+
+    public FlowRecordParser(DailyTrafficTable dailyTraffic, Charset charset) {
+        this.dailyTraffic = dailyTraffic;
+        this.charset = charset;
+    }
+
+    public void parse(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[1 << 20];
+        int length = 0;
+
+        int read;
+        while ((read = inputStream.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+
+            int consumed = parse(buffer, 0, length, false);
+            length -= consumed;
+            System.arraycopy(buffer, consumed, buffer, 0, length);
+
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+
+        parse(buffer, 0, length, true);
+    }
+
+    public void parseChunk(byte[] buffer, int from, int to, boolean firstChunk) {
+        parseChunk(buffer, from, to, firstChunk, true);
+    }
+
+    public int parseChunk(byte[] buffer, int from, int to, boolean firstChunk, boolean endOfInput) {
+        headerSkipped = !firstChunk;
+        return parse(buffer, from, to, endOfInput);
+    }
+
+    public int parse(byte[] buffer, int from, int to, boolean endOfInput) {
+        int position = from;
+
+        while (position < to) {
+            int recordStart = position;
+            int fieldIndex = 0;
+            int fieldStart = position;
+            boolean quoted = false;
+            int recordEnd = -1;
+
+            int i = position;
+            while (i < to) {
+                byte b = buffer[i];
+                if (b == ',') {
+                    endField(fieldIndex++, fieldStart, i);
+                    fieldStart = ++i;
+                } else if (b == '\n' || b == '\r') {
+                    recordEnd = i;
+                    break;
+                } else if (b == '"' && i == fieldStart) {
+                    quoted = true;
+                    i = skipQuotedField(buffer, i + 1, to);
+                } else {
+                    i++;
+                }
+            }
+
+            if (recordEnd == -1) {
+                if (!endOfInput) {
+                    return recordStart;
+                }
+                recordEnd = to;
+            }
+            endField(fieldIndex, fieldStart, recordEnd);
+            position = recordEnd + 1;
+
+            if (recordEnd == recordStart) {
+                continue;
+            }
+            if (!headerSkipped) {
+                headerSkipped = true;
+                continue;
+            }
+
+            if (quoted) {
+                processFields(splitRecord(new String(buffer, recordStart, recordEnd - recordStart, charset)));
+            } else if (fieldIndex + 1 >= MIN_FIELDS) {
+                processRecord(buffer, recordStart, recordEnd);
+            }
+        }
+
+        return to;
+    }
+
+    private void endField(int fieldIndex, int start, int end) {
+        if (fieldIndex < MIN_FIELDS) {
+            fieldStarts[fieldIndex] = start;
+            fieldEnds[fieldIndex] = end;
+        }
+    }
+
+    private static int skipQuotedField(byte[] buffer, int from, int to) {
+        int i = from;
+        while (i < to) {
+            if (buffer[i] == '"') {
+                if (i + 1 < to && buffer[i + 1] == '"') {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        return to;
+    }
+
+    private void processRecord(byte[] buffer, int recordStart, int recordEnd) {
+        int timestampStart = trimStart(buffer, fieldStarts[TIMESTAMP], fieldEnds[TIMESTAMP]);
+        int timestampEnd = trimEnd(buffer, timestampStart, fieldEnds[TIMESTAMP]);
+        if (timestampStart == timestampEnd) {
+            return;
+        }
+
+        long epochDay;
+        if (timestampEnd - timestampStart == TIMESTAMP_LENGTH && parseTimestamp(buffer, timestampStart)) {
+            epochDay = lastEpochDay;
+        } else {
+            String timestampStr = new String(buffer, timestampStart, timestampEnd - timestampStart, charset);
+            try {
+                epochDay = LocalDateTime.parse(timestampStr, INPUT_FORMATTER).toLocalDate().toEpochDay();
+            } catch (Exception e) {
+                List<String> fields = splitRecord(new String(buffer, recordStart, recordEnd - recordStart, charset));
+                System.err.println("Error processing record: " + fields);
+                System.err.println("Error details: " + e.getMessage());
+                return;
+            }
+        }
+
+        int sourceStart = trimStart(buffer, fieldStarts[SOURCE_IP], fieldEnds[SOURCE_IP]);
+        int sourceEnd = trimEnd(buffer, sourceStart, fieldEnds[SOURCE_IP]);
+        int destStart = trimStart(buffer, fieldStarts[DESTINATION_IP], fieldEnds[DESTINATION_IP]);
+        int destEnd = trimEnd(buffer, destStart, fieldEnds[DESTINATION_IP]);
+
+        if (sourceStart == sourceEnd || destStart == destEnd) {
+            return;
+        }
+
+        long flowDuration = parseLongSafely(buffer, fieldStarts[FLOW_DURATION], fieldEnds[FLOW_DURATION]);
+        long forwardPackets = parseLongSafely(buffer, fieldStarts[FORWARD_PACKETS], fieldEnds[FORWARD_PACKETS]);
+
+        dailyTraffic.add(epochDay, buffer, sourceStart, sourceEnd, destStart, destEnd, flowDuration, forwardPackets);
+    }
+
+    private boolean parseTimestamp(byte[] buffer, int start) {
+        if (buffer[start + 2] != '/' || buffer[start + 5] != '/' || buffer[start + 10] != ' '
+                || buffer[start + 13] != ':' || buffer[start + 16] != ':' || buffer[start + 19] != ' '
+                || (buffer[start + 20] != 'A' && buffer[start + 20] != 'P') || buffer[start + 21] != 'M') {
+            return false;
+        }
+
+        int hour = twoDigits(buffer, start + 11);
+        int minute = twoDigits(buffer, start + 14);
+        int second = twoDigits(buffer, start + 17);
+        if (hour < 1 || hour > 12 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return false;
+        }
+
+        if (hasLastDate && Arrays.equals(buffer, start, start + 10, lastDate, 0, 10)) {
+            return true;
+        }
+
+        int day = twoDigits(buffer, start);
+        int month = twoDigits(buffer, start + 3);
+        int yearHigh = twoDigits(buffer, start + 6);
+        int yearLow = twoDigits(buffer, start + 8);
+        if (day < 1 || month < 1 || month > 12 || yearHigh < 0 || yearLow < 0) {
+            return false;
+        }
+        int year = yearHigh * 100 + yearLow;
+        if (year < 1 || day > monthLength(month, year)) {
+            return false;
+        }
+
+        System.arraycopy(buffer, start, lastDate, 0, 10);
+        lastEpochDay = LocalDate.of(year, month, day).toEpochDay();
+        hasLastDate = true;
+        return true;
+    }
+
+    private static int twoDigits(byte[] buffer, int start) {
+        int tens = buffer[start] - '0';
+        int units = buffer[start + 1] - '0';
+        if (tens < 0 || tens > 9 || units < 0 || units > 9) {
+            return -1;
+        }
+        return tens * 10 + units;
+    }
+
+    private static int monthLength(int month, int year) {
+        switch (month) {
+            case 2:
+                boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+                return leap ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    private long parseLongSafely(byte[] buffer, int from, int to) {
+        int start = trimStart(buffer, from, to);
+        int end = trimEnd(buffer, start, to);
+        if (start == end) {
+            return 0L;
+        }
+
+        int i = start;
+        boolean negative = false;
+        if (buffer[i] == '-' || buffer[i] == '+') {
+            negative = buffer[i] == '-';
+            if (++i == end) {
+                return 0L;
+            }
+        }
+
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multiplyLimit = limit / 10;
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return buffer[i] < 0 ? parseLongSafely(new String(buffer, start, end - start, charset)) : 0L;
+            }
+            if (result < multiplyLimit) {
+                return 0L;
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                return 0L;
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    private long parseLongSafely(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException | NullPointerException e) {
+            return 0L;
+        }
+    }
+
+    private static int trimStart(byte[] buffer, int from, int to) {
+        while (from < to && buffer[from] >= 0 && buffer[from] <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimEnd(byte[] buffer, int from, int to) {
+        while (to > from && buffer[to - 1] >= 0 && buffer[to - 1] <= ' ') {
+            to--;
+        }
+        return to;
+    }
+
+    private void processFields(List<String> fields) {
+        try {
+            if (fields.size() < MIN_FIELDS) {
+                return;
+            }
+
+            String timestampStr = fields.get(TIMESTAMP).trim();
+            if (timestampStr.isEmpty()) {
+                return;
+            }
+
+            long epochDay = LocalDateTime.parse(timestampStr, INPUT_FORMATTER).toLocalDate().toEpochDay();
+            String sourceIp = fields.get(SOURCE_IP).trim();
+            String destIp = fields.get(DESTINATION_IP).trim();
+
+            if (sourceIp.isEmpty() || destIp.isEmpty()) {
+                return;
+            }
+
+            byte[] source = sourceIp.getBytes(charset);
+            byte[] dest = destIp.getBytes(charset);
+            byte[] addresses = Arrays.copyOf(source, source.length + dest.length);
+            System.arraycopy(dest, 0, addresses, source.length, dest.length);
+
+            dailyTraffic.add(epochDay, addresses, 0, source.length, source.length, addresses.length,
+                    parseLongSafely(fields.get(FLOW_DURATION)),
+                    parseLongSafely(fields.get(FORWARD_PACKETS)));
+
+        } catch (Exception e) {
+            System.err.println("Error processing record: " + fields);
+            System.err.println("Error details: " + e.getMessage());
+        }
+    }
+
+    static List<String> splitRecord(String record) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        int i = 0;
+
+        while (true) {
+            field.setLength(0);
+            if (i < record.length() && record.charAt(i) == '"') {
+                i++;
+                while (i < record.length()) {
+                    char c = record.charAt(i++);
+                    if (c == '"') {
+                        if (i < record.length() && record.charAt(i) == '"') {
+                            field.append('"');
+                            i++;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        field.append(c);
+                    }
+                }
+            }
+            while (i < record.length() && record.charAt(i) != ',') {
+                field.append(record.charAt(i++));
+            }
+            fields.add(field.toString());
+
+            if (i >= record.length()) {
+                return fields;
+            }
+            i++;
+        }
+    }
+}
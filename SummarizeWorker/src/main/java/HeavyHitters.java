@@ -0,0 +1,356 @@
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Space-Saving summaries of the heaviest source IPs, destination IPs and pairs of each traffic date,
+// by forward packets and by flow duration. Each summary keeps a fixed number of counters. A key that is not counted
+// yet takes over the smallest counter, inherits its count as error, and that count becomes the
+// floor: the most any key left out can have. An estimate is never below the key's true total and
+// never more than its error above it. Summaries of different files merge by adding estimates,
+// taking a summary's floor for a key it does not hold, so the bounds survive consolidation.
+//
+// The report is a CSV of the size heaviest keys of each list and date:
+//
+//   date,list,source_ip,destination_ip,estimate,error,floor
+//
+// where source lists leave destination_ip empty and destination lists leave source_ip empty. Rows of
+// reports written before there were dates have no date column and are read under the date "".
+public final class HeavyHitters {
+
+    public static final String REPORT_SUFFIX = ".topk";
+    public static final String HEADER = "date,list,source_ip,destination_ip,estimate,error,floor";
+
+    // Counters kept per reported key while a file is summarized.
+    private static final int CAPACITY_FACTOR = 4;
+
+    private static final String[] LISTS = {
+            "source_packets", "source_duration",
+            "destination_packets", "destination_duration",
+            "pair_packets", "pair_duration" };
+
+    private int size;
+    private final int capacity;
+    private final TreeMap<String, Summary[]> days = new TreeMap<>();
+
+    public HeavyHitters(int size) {
+        this(size, size * CAPACITY_FACTOR);
+    }
+
+    private HeavyHitters(int size, int capacity) {
+        this.size = size;
+        this.capacity = capacity;
+    }
+
+    public static boolean isReport(String key) {
+        return key.endsWith(REPORT_SUFFIX);
+    }
+
+    public static String reportKey(String summaryKey) {
+        return summaryKey + REPORT_SUFFIX;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Set<String> dates() {
+        return Collections.unmodifiableSet(days.keySet());
+    }
+
+    // The report of one date only, empty when it has no rows of that date.
+    public HeavyHitters day(String date) {
+        HeavyHitters day = new HeavyHitters(size, capacity);
+        Summary[] summaries = days.get(date);
+        if (summaries != null) {
+            day.days.put(date, copy(summaries, capacity));
+        }
+        return day;
+    }
+
+    // Weights that are not positive are left out.
+    public void add(String date, String source, String destination, long duration, long packets) {
+        Summary[] summaries = days.computeIfAbsent(date, key -> newSummaries(capacity));
+        String pair = source + "," + destination;
+        if (packets > 0) {
+            summaries[0].add(source, packets);
+            summaries[2].add(destination, packets);
+            summaries[4].add(pair, packets);
+        }
+        if (duration > 0) {
+            summaries[1].add(source, duration);
+            summaries[3].add(destination, duration);
+            summaries[5].add(pair, duration);
+        }
+    }
+
+    // Merges the lists of each date with those of the same date only.
+    public void merge(HeavyHitters other) {
+        size = Math.max(size, other.size);
+        other.days.forEach((date, theirs) -> {
+            Summary[] ours = days.get(date);
+            if (ours == null) {
+                days.put(date, copy(theirs, capacity));
+                return;
+            }
+            for (int list = 0; list < LISTS.length; list++) {
+                ours[list] = Summary.merge(ours[list], theirs[list]);
+            }
+        });
+    }
+
+    public void write(Appendable output) throws IOException {
+        output.append(HEADER).append('\n');
+        StringBuilder row = new StringBuilder(128);
+        for (Map.Entry<String, Summary[]> day : days.entrySet()) {
+            for (int list = 0; list < LISTS.length; list++) {
+                write(output, row, day.getKey(), list, day.getValue()[list]);
+            }
+        }
+    }
+
+    private void write(Appendable output, StringBuilder row, String date, int list, Summary summary) throws IOException {
+        Counter[] counters = summary.sorted();
+        int count = Math.min(size, counters.length);
+        long floor = summary.floor;
+        if (count < counters.length) {
+            floor = Math.max(floor, counters[count].count);
+        }
+
+        for (int i = 0; i < count; i++) {
+            row.setLength(0);
+            row.append(date).append(',').append(LISTS[list]).append(',');
+            String key = counters[i].key;
+            if (list < 2) {
+                row.append(key).append(',');
+            } else if (list < 4) {
+                row.append(',').append(key);
+            } else {
+                row.append(key);
+            }
+            row.append(',').append(counters[i].count)
+                    .append(',').append(counters[i].error)
+                    .append(',').append(floor)
+                    .append('\n');
+            output.append(row);
+        }
+    }
+
+    // The report's size is its longest list. Rows that do not parse are skipped.
+    public static HeavyHitters read(Reader input) throws IOException {
+        TreeMap<String, List<List<Counter>>> days = new TreeMap<>();
+        HashMap<String, long[]> floors = new HashMap<>();
+
+        BufferedReader reader = new BufferedReader(input);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split(",", -1);
+            int offset = fields.length - 6;
+            int list = offset == 0 || offset == 1 ? Arrays.asList(LISTS).indexOf(fields[offset]) : -1;
+            if (list < 0) {
+                continue;
+            }
+            String date = offset == 0 ? "" : fields[0];
+            String key = list < 2 ? fields[offset + 1] : list < 4 ? fields[offset + 2] : fields[offset + 1] + "," + fields[offset + 2];
+            try {
+                Counter counter = new Counter(key, Long.parseLong(fields[offset + 3]), Long.parseLong(fields[offset + 4]));
+                long floor = Long.parseLong(fields[offset + 5]);
+                days.computeIfAbsent(date, day -> newLists()).get(list).add(counter);
+                long[] dayFloors = floors.computeIfAbsent(date, day -> new long[LISTS.length]);
+                dayFloors[list] = Math.max(dayFloors[list], floor);
+            } catch (NumberFormatException e) {
+                // Not a report row.
+            }
+        }
+
+        int size = 1;
+        for (List<List<Counter>> lists : days.values()) {
+            for (List<Counter> counters : lists) {
+                size = Math.max(size, counters.size());
+            }
+        }
+        HeavyHitters heavyHitters = new HeavyHitters(size, size);
+        for (Map.Entry<String, List<List<Counter>>> day : days.entrySet()) {
+            Summary[] summaries = new Summary[LISTS.length];
+            for (int list = 0; list < LISTS.length; list++) {
+                summaries[list] = Summary.of(day.getValue().get(list), floors.get(day.getKey())[list], size);
+            }
+            heavyHitters.days.put(day.getKey(), summaries);
+        }
+        return heavyHitters;
+    }
+
+    private static Summary[] newSummaries(int capacity) {
+        Summary[] summaries = new Summary[LISTS.length];
+        for (int list = 0; list < LISTS.length; list++) {
+            summaries[list] = new Summary(capacity);
+        }
+        return summaries;
+    }
+
+    // Summaries are changed in place by add, so reports never share them.
+    private static Summary[] copy(Summary[] summaries, int capacity) {
+        Summary[] copy = new Summary[LISTS.length];
+        for (int list = 0; list < LISTS.length; list++) {
+            copy[list] = Summary.merge(new Summary(capacity), summaries[list]);
+        }
+        return copy;
+    }
+
+    private static List<List<Counter>> newLists() {
+        List<List<Counter>> lists = new ArrayList<>();
+        for (int list = 0; list < LISTS.length; list++) {
+            lists.add(new ArrayList<>());
+        }
+        return lists;
+    }
+
+    private static final class Counter {
+
+        String key;
+        long count;
+        long error;
+        int index;
+
+        Counter(String key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    // The counters sit in a binary min-heap on count, each knowing its place, so a count that grows
+    // sinks in log(capacity) steps and the smallest one is always at the root.
+    private static final class Summary {
+
+        private static final Comparator<Counter> HEAVIEST_FIRST = Comparator.<Counter>comparingLong(counter -> counter.count)
+                .reversed().thenComparing(counter -> counter.key);
+
+        final int capacity;
+        final HashMap<String, Counter> counters = new HashMap<>();
+        final Counter[] heap;
+        int heapSize;
+        long floor;
+
+        Summary(int capacity) {
+            this.capacity = capacity;
+            this.heap = new Counter[capacity];
+        }
+
+        // counters may hold more than capacity; the heaviest are kept and the floor rises to the
+        // heaviest one dropped.
+        static Summary of(List<Counter> counters, long floor, int capacity) {
+            counters.sort(HEAVIEST_FIRST);
+            Summary summary = new Summary(capacity);
+            summary.floor = floor;
+            for (Counter counter : counters) {
+                if (summary.heapSize == capacity) {
+                    summary.floor = Math.max(summary.floor, counter.count);
+                    break;
+                }
+                if (summary.counters.putIfAbsent(counter.key, counter) == null) {
+                    counter.index = summary.heapSize;
+                    summary.heap[summary.heapSize++] = counter;
+                }
+            }
+            // Counts in ascending order already form a min-heap.
+            for (int i = 0, j = summary.heapSize - 1; i < j; i++, j--) {
+                Counter swap = summary.heap[i];
+                summary.heap[i] = summary.heap[j];
+                summary.heap[j] = swap;
+            }
+            for (int i = 0; i < summary.heapSize; i++) {
+                summary.heap[i].index = i;
+            }
+            return summary;
+        }
+
+        static Summary merge(Summary left, Summary right) {
+            Set<String> keys = new HashSet<>(left.counters.keySet());
+            keys.addAll(right.counters.keySet());
+            List<Counter> merged = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                Counter fromLeft = left.counters.get(key);
+                Counter fromRight = right.counters.get(key);
+                merged.add(new Counter(key,
+                        (fromLeft == null ? left.floor : fromLeft.count) + (fromRight == null ? right.floor : fromRight.count),
+                        (fromLeft == null ? left.floor : fromLeft.error) + (fromRight == null ? right.floor : fromRight.error)));
+            }
+            return of(merged, left.floor + right.floor, Math.max(left.capacity, right.capacity));
+        }
+
+        void add(String key, long weight) {
+            Counter counter = counters.get(key);
+            if (counter == null) {
+                if (heapSize < capacity) {
+                    counter = new Counter(key, 0, 0);
+                    counter.index = heapSize;
+                    heap[heapSize++] = counter;
+                    siftUp(counter.index);
+                } else {
+                    counter = heap[0];
+                    counters.remove(counter.key);
+                    floor = counter.count;
+                    counter.key = key;
+                    counter.error = counter.count;
+                }
+                counters.put(key, counter);
+            }
+            counter.count += weight;
+            siftDown(counter.index);
+        }
+
+        Counter[] sorted() {
+            Counter[] sorted = Arrays.copyOf(heap, heapSize);
+            Arrays.sort(sorted, HEAVIEST_FIRST);
+            return sorted;
+        }
+
+        private void siftUp(int index) {
+            Counter counter = heap[index];
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (heap[parent].count <= counter.count) {
+                    break;
+                }
+                place(heap[parent], index);
+                index = parent;
+            }
+            place(counter, index);
+        }
+
+        private void siftDown(int index) {
+            Counter counter = heap[index];
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= heapSize) {
+                    break;
+                }
+                if (child + 1 < heapSize && heap[child + 1].count < heap[child].count) {
+                    child++;
+                }
+                if (heap[child].count >= counter.count) {
+                    break;
+                }
+                place(heap[child], index);
+                index = child;
+            }
+            place(counter, index);
+        }
+
+        private void place(Counter counter, int index) {
+            heap[index] = counter;
+            counter.index = index;
+        }
+    }
+}
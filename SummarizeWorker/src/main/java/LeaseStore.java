@@ -0,0 +1,30 @@
+
+public interface LeaseStore {
+
+    Lease tryAcquire(String key);
+
+    boolean renew(Lease lease);
+
+    void release(Lease lease);
+
+    class Lease {
+
+        final String key;
+        volatile String version;
+        volatile long expiresAt;
+
+        Lease(String key, String version, long expiresAt) {
+            this.key = key;
+            this.version = version;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+}
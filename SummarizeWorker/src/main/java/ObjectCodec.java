@@ -0,0 +1,62 @@
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+// Compression applied to an object body. The codec is stored in the object's user metadata under
+// METADATA_KEY, and objects written without it are read as NONE.
+public enum ObjectCodec {
+
+    NONE,
+    GZIP,
+    LZ4;
+
+    public static final String METADATA_KEY = "codec";
+
+    private static final int BUFFER_SIZE = 65536;
+
+    public static ObjectCodec fromName(String name) {
+        if (name == null || name.isEmpty()) {
+            return NONE;
+        }
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+
+    public static ObjectCodec fromMetadata(Map<String, String> metadata) {
+        return fromName(metadata.get(METADATA_KEY));
+    }
+
+    public Map<String, String> metadata() {
+        return this == NONE ? Map.of() : Map.of(METADATA_KEY, name().toLowerCase(Locale.ROOT));
+    }
+
+    // Closing the returned stream finishes the encoding and closes the target.
+    public OutputStream encode(OutputStream outputStream) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(outputStream, BUFFER_SIZE);
+            case LZ4:
+                return new LZ4FrameOutputStream(outputStream);
+            default:
+                return outputStream;
+        }
+    }
+
+    public InputStream decode(InputStream inputStream) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPInputStream(inputStream, BUFFER_SIZE);
+            case LZ4:
+                return new LZ4FrameInputStream(inputStream);
+            default:
+                return inputStream;
+        }
+    }
+}
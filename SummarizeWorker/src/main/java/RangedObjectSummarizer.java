@@ -0,0 +1,178 @@
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+
+public class RangedObjectSummarizer {
+
+    public static final int DEFAULT_RANGE_SIZE = 16 * 1024 * 1024;
+
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+
+    private final S3Client s3Client;
+    private final int connections;
+    private final long rangeSize;
+    private final Charset charset;
+
+    public RangedObjectSummarizer(S3Client s3Client, int connections, long rangeSize, Charset charset) {
+        this.s3Client = s3Client;
+        this.connections = connections;
+        this.rangeSize = rangeSize;
+        this.charset = charset;
+    }
+
+    public boolean shouldSplit(long objectSize) {
+        return connections > 1 && objectSize > rangeSize;
+    }
+
+    public DailyTrafficTable summarize(String bucket, String key, long objectSize) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(connections, runnable -> {
+            Thread thread = new Thread(runnable, "ranged-download");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            ConcurrentLinkedQueue<DailyTrafficTable> partials = new ConcurrentLinkedQueue<>();
+            ThreadLocal<FlowRecordParser> parsers = ThreadLocal.withInitial(() -> {
+                DailyTrafficTable partial = new DailyTrafficTable(charset);
+                partials.add(partial);
+                return new FlowRecordParser(partial, charset);
+            });
+
+            List<Future<RangeEdges>> ranges = new ArrayList<>();
+            for (long start = 0; start < objectSize; start += rangeSize) {
+                long rangeStart = start;
+                long rangeEnd = Math.min(start + rangeSize, objectSize);
+                ranges.add(executor.submit(() -> summarizeRange(bucket, key, rangeStart, rangeEnd, parsers.get())));
+            }
+
+            List<RangeEdges> edges = new ArrayList<>();
+            for (Future<RangeEdges> range : ranges) {
+                edges.add(range.get());
+            }
+
+            DailyTrafficTable stitched = new DailyTrafficTable(charset);
+            stitchBoundaryRows(edges, new FlowRecordParser(stitched, charset));
+            partials.add(stitched);
+
+            return ParallelSummarizer.merge(executor, new ArrayList<>(partials), charset);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + key, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error while downloading range of " + key + ": " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Rows that lie wholly inside the range are parsed as they stream in. The bytes before the
+    // first line break and after the last one belong to rows shared with the neighbouring ranges.
+    private RangeEdges summarizeRange(String bucket, String key, long start, long end, FlowRecordParser parser)
+            throws IOException {
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .range("bytes=" + start + "-" + (end - 1))
+                .build();
+
+        RangeEdges edges = new RangeEdges();
+        byte[] buffer = new byte[(int) Math.min(READ_BUFFER_SIZE, end - start)];
+        int length = 0;
+
+        try (InputStream inputStream = s3Client.getObject(getObjectRequest)) {
+            int read;
+            while ((read = inputStream.read(buffer, length, buffer.length - length)) != -1) {
+                length += read;
+                int from = 0;
+
+                if (edges.head == null) {
+                    int lineBreak = firstLineBreak(buffer, 0, length);
+                    if (start == 0) {
+                        while (lineBreak == from && from < length) {
+                            lineBreak = firstLineBreak(buffer, ++from, length);
+                        }
+                    }
+                    if (lineBreak == -1) {
+                        if (length == buffer.length) {
+                            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                        }
+                        continue;
+                    }
+                    edges.head = Arrays.copyOfRange(buffer, from, lineBreak);
+                    from = lineBreak + 1;
+                }
+
+                int consumed = parser.parseChunk(buffer, from, length, false, false);
+                length -= consumed;
+                System.arraycopy(buffer, consumed, buffer, 0, length);
+
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+        }
+
+        if (edges.head == null) {
+            edges.head = Arrays.copyOf(buffer, length);
+            edges.tail = null;
+        } else {
+            edges.tail = Arrays.copyOf(buffer, length);
+        }
+        return edges;
+    }
+
+    // The row that starts in the first range is the CSV header and is dropped.
+    private void stitchBoundaryRows(List<RangeEdges> edges, FlowRecordParser parser) {
+        ByteArrayOutputStream row = new ByteArrayOutputStream();
+        boolean header = true;
+
+        for (RangeEdges range : edges) {
+            row.write(range.head, 0, range.head.length);
+            if (range.tail == null) {
+                continue;
+            }
+            if (!header) {
+                byte[] bytes = row.toByteArray();
+                parser.parseChunk(bytes, 0, bytes.length, false);
+            }
+            header = false;
+            row.reset();
+            row.write(range.tail, 0, range.tail.length);
+        }
+
+        if (!header && row.size() > 0) {
+            byte[] bytes = row.toByteArray();
+            parser.parseChunk(bytes, 0, bytes.length, false);
+        }
+    }
+
+    private static int firstLineBreak(byte[] buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == '\n' || buffer[i] == '\r') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static class RangeEdges {
+
+        byte[] head;
+        byte[] tail;
+    }
+}
@@ -0,0 +1,141 @@
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+// A lease is a marker object under LEASE_PREFIX holding "owner,expiresAtMillis". It is created
+// with If-None-Match: * and replaced (renewed, or taken over once expired) with If-Match on the
+// ETag that was read, so only one worker can win each write.
+public class S3LeaseStore implements LeaseStore {
+
+    public static final String LEASE_PREFIX = ".leases/";
+    // Sorts after every key under LEASE_PREFIX, for listings that skip the markers.
+    public static final String AFTER_LEASES = ".leases0";
+
+    private final S3Client s3Client;
+    private final String bucket;
+    private final long leaseMillis;
+    private final String owner;
+
+    public S3LeaseStore(S3Client s3Client, String bucket, long leaseMillis) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.leaseMillis = leaseMillis;
+        this.owner = hostName() + "-" + UUID.randomUUID();
+    }
+
+    @Override
+    public Lease tryAcquire(String key) {
+        String leaseKey = LEASE_PREFIX + key;
+        long expiresAt = System.currentTimeMillis() + leaseMillis;
+
+        try {
+            return new Lease(key, write(leaseKey, expiresAt, "If-None-Match", "*"), expiresAt);
+        } catch (S3Exception e) {
+            if (!isConditionFailure(e)) {
+                throw e;
+            }
+        }
+
+        ResponseBytes<GetObjectResponse> existing;
+        try {
+            existing = s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(leaseKey)
+                    .build());
+        } catch (NoSuchKeyException e) {
+            return null;
+        }
+
+        String[] fields = existing.asUtf8String().split(",");
+        if (fields.length == 2 && parseLongSafely(fields[1]) > System.currentTimeMillis()) {
+            return null;
+        }
+
+        try {
+            System.out.println("Taking over expired lease on " + key + " from " + fields[0]);
+            return new Lease(key, write(leaseKey, expiresAt, "If-Match", existing.response().eTag()), expiresAt);
+        } catch (S3Exception e) {
+            if (isConditionFailure(e)) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean renew(Lease lease) {
+        long expiresAt = System.currentTimeMillis() + leaseMillis;
+        try {
+            lease.version = write(LEASE_PREFIX + lease.key, expiresAt, "If-Match", lease.version);
+            lease.expiresAt = expiresAt;
+            return true;
+        } catch (S3Exception e) {
+            if (isConditionFailure(e)) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    // The delete is conditional on the lease's ETag, so a lease another worker took over after this
+    // one expired is left alone; 412 means it was already taken over.
+    @Override
+    public void release(Lease lease) {
+        try {
+            s3Client.deleteObject(DeleteObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(LEASE_PREFIX + lease.key)
+                    .overrideConfiguration(config -> config.putHeader("If-Match", lease.version))
+                    .build());
+        } catch (NoSuchKeyException e) {
+            return;
+        } catch (S3Exception e) {
+            if (e.statusCode() != 404 && !isConditionFailure(e)) {
+                throw e;
+            }
+        }
+    }
+
+    private String write(String leaseKey, long expiresAt, String condition, String value) {
+        PutObjectRequest putRequest = PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(leaseKey)
+                .contentType("text/plain")
+                .overrideConfiguration(config -> config.putHeader(condition, value))
+                .build();
+
+        return s3Client.putObject(putRequest,
+                RequestBody.fromString(owner + "," + expiresAt, StandardCharsets.UTF_8)).eTag();
+    }
+
+    private static long parseLongSafely(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    private static boolean isConditionFailure(S3Exception e) {
+        return e.statusCode() == 412 || e.statusCode() == 409;
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            return "worker";
+        }
+    }
+}
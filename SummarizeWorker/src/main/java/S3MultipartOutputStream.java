@@ -0,0 +1,213 @@
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+// Streams an object to S3 in parts of partSize bytes, up to partsInFlight of them uploading at once.
+// An object that fits in one part is written with a single PutObject, a larger one by
+// CompleteMultipartUpload, so its S3 event is s3:ObjectCreated:CompleteMultipartUpload and not
+// s3:ObjectCreated:Put. Triggers on these objects must subscribe to s3:ObjectCreated:*.
+public class S3MultipartOutputStream extends OutputStream {
+
+    public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_PARTS_IN_FLIGHT = 4;
+
+    private final S3Client s3Client;
+    private final String bucket;
+    private final String key;
+    private final String contentType;
+    private final Map<String, String> metadata;
+    private final ExecutorService uploader;
+    private final BlockingQueue<byte[]> freeBuffers;
+    private final List<Future<CompletedPart>> parts = new ArrayList<>();
+
+    private byte[] buffer;
+    private int length = 0;
+    private String uploadId;
+    private boolean closed = false;
+
+    public S3MultipartOutputStream(S3Client s3Client, String bucket, String key, String contentType,
+            Map<String, String> metadata, int partSize, int partsInFlight) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+        this.contentType = contentType;
+        this.metadata = metadata;
+        this.uploader = Executors.newFixedThreadPool(partsInFlight, runnable -> {
+            Thread thread = new Thread(runnable, "multipart-upload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.freeBuffers = new ArrayBlockingQueue<>(partsInFlight + 1);
+        for (int i = 0; i < partsInFlight + 1; i++) {
+            freeBuffers.add(new byte[partSize]);
+        }
+        this.buffer = freeBuffers.poll();
+    }
+
+    public S3MultipartOutputStream(S3Client s3Client, String bucket, String key, String contentType) {
+        this(s3Client, bucket, key, contentType, Map.of());
+    }
+
+    public S3MultipartOutputStream(S3Client s3Client, String bucket, String key, String contentType,
+            Map<String, String> metadata) {
+        this(s3Client, bucket, key, contentType, metadata, DEFAULT_PART_SIZE, DEFAULT_PARTS_IN_FLIGHT);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (length == buffer.length) {
+            flushPart();
+        }
+        buffer[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int count) throws IOException {
+        while (count > 0) {
+            if (length == buffer.length) {
+                flushPart();
+            }
+            int chunk = Math.min(count, buffer.length - length);
+            System.arraycopy(bytes, offset, buffer, length, chunk);
+            length += chunk;
+            offset += chunk;
+            count -= chunk;
+        }
+    }
+
+    private void flushPart() throws IOException {
+        if (uploadId == null) {
+            uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .contentType(contentType)
+                    .metadata(metadata)
+                    .build()).uploadId();
+        }
+
+        byte[] part = buffer;
+        int partLength = length;
+        int partNumber = parts.size() + 1;
+
+        parts.add(uploader.submit(() -> {
+            try {
+                UploadPartRequest uploadRequest = UploadPartRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .uploadId(uploadId)
+                        .partNumber(partNumber)
+                        .contentLength((long) partLength)
+                        .build();
+
+                String eTag = s3Client.uploadPart(uploadRequest,
+                        RequestBody.fromInputStream(new ByteArrayInputStream(part, 0, partLength), partLength)).eTag();
+
+                return CompletedPart.builder().partNumber(partNumber).eTag(eTag).build();
+            } finally {
+                freeBuffers.offer(part);
+            }
+        }));
+
+        try {
+            buffer = freeBuffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a part buffer", e);
+        }
+        length = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (uploadId == null) {
+                PutObjectRequest putRequest = PutObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .contentType(contentType)
+                        .metadata(metadata)
+                        .build();
+
+                s3Client.putObject(putRequest, RequestBody.fromInputStream(new ByteArrayInputStream(buffer, 0, length), length));
+                return;
+            }
+
+            if (length > 0) {
+                flushPart();
+            }
+
+            List<CompletedPart> completedParts = new ArrayList<>();
+            for (Future<CompletedPart> part : parts) {
+                completedParts.add(part.get());
+            }
+            completedParts.sort(Comparator.comparing(CompletedPart::partNumber));
+
+            s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+                    .build());
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abortUpload();
+            throw new IOException("Interrupted while uploading " + key, e);
+        } catch (ExecutionException | RuntimeException e) {
+            abortUpload();
+            throw new IOException("Error uploading " + key + " to bucket " + bucket, e);
+        } finally {
+            uploader.shutdownNow();
+        }
+    }
+
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        abortUpload();
+        uploader.shutdownNow();
+    }
+
+    private void abortUpload() {
+        if (uploadId == null) {
+            return;
+        }
+        try {
+            s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .build());
+        } catch (Exception e) {
+            System.err.println("Error aborting multipart upload of " + key + ": " + e.getMessage());
+        }
+    }
+}
@@ -1,13 +1,20 @@
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.stream.Stream;
@@ -21,10 +28,62 @@ public class SummarizeWorker {
             .appendPattern("dd/MM/yyyy hh:mm:ss a")
             .toFormatter(Locale.ENGLISH);
 
+    public enum Engine {
+        FASTCSV,
+        FLOW_PARSER,
+        PARALLEL
+    }
+
+    private final Engine engine;
+
     public SummarizeWorker() {
+        this(Engine.FASTCSV);
+    }
+
+    public SummarizeWorker(Engine engine) {
+        this.engine = engine;
     }
 
     public String processCsv(InputStream inputStream) throws IOException {
+        StringBuilder output = new StringBuilder();
+        processCsv(inputStream, output, null);
+        return output.toString();
+    }
+
+    public void processCsv(InputStream inputStream, OutputStream outputStream) throws IOException {
+        processCsv(inputStream, outputStream, null);
+    }
+
+    // Each summary row is also passed to listener, when given, as it is written.
+    public void processCsv(InputStream inputStream, OutputStream outputStream, SummaryListener listener) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, Charset.defaultCharset()), 65536);
+        processCsv(inputStream, writer, listener);
+        writer.flush();
+    }
+
+    public void writeOutput(DailyTrafficTable dailyTraffic, OutputStream outputStream) throws IOException {
+        writeOutput(dailyTraffic, outputStream, null);
+    }
+
+    public void writeOutput(DailyTrafficTable dailyTraffic, OutputStream outputStream, SummaryListener listener)
+            throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, Charset.defaultCharset()), 65536);
+        dailyTraffic.writeOutput(writer, listener);
+        writer.flush();
+    }
+
+    private void processCsv(InputStream inputStream, Appendable output, SummaryListener listener) throws IOException {
+        if (engine == Engine.FLOW_PARSER) {
+            DailyTrafficTable dailyTraffic = new DailyTrafficTable(Charset.defaultCharset());
+            new FlowRecordParser(dailyTraffic, Charset.defaultCharset()).parse(inputStream);
+            dailyTraffic.writeOutput(output, listener);
+            return;
+        }
+        if (engine == Engine.PARALLEL) {
+            new ParallelSummarizer(Charset.defaultCharset()).summarize(inputStream).writeOutput(output, listener);
+            return;
+        }
+
         Map<String, AggregatedData> dailyTraffic = Collections.synchronizedMap(new HashMap<>());
 
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream), 32768); CsvReader csvReader = CsvReader.builder().ofCsvRecord(reader)) {
@@ -35,7 +94,7 @@ public class SummarizeWorker {
                         .forEach(row -> processRecord(row, dailyTraffic));
             }
 
-            return convertToOutput(dailyTraffic);
+            writeOutput(dailyTraffic, output, listener);
         }
     }
 
@@ -80,22 +139,35 @@ public class SummarizeWorker {
         }
     }
 
-    private String convertToOutput(Map<String, SummarizeWorker.AggregatedData> dailyTraffic) {
-        StringBuilder output = new StringBuilder();
+    private void writeOutput(Map<String, SummarizeWorker.AggregatedData> dailyTraffic, Appendable output,
+            SummaryListener listener) throws IOException {
         output.append("date,source_ip,destination_ip,total_flow_duration,total_forward_packets\n");
 
-        dailyTraffic.entrySet().stream()
-                .sorted(Map.Entry.comparingByKey())
-                .forEach(entry -> {
-                    output.append(entry.getKey())
-                            .append(",")
-                            .append(entry.getValue().totalDuration)
-                            .append(",")
-                            .append(entry.getValue().totalPackets)
-                            .append("\n");
-                });
+        List<Map.Entry<String, AggregatedData>> entries = new ArrayList<>(dailyTraffic.entrySet());
+        entries.sort(Map.Entry.comparingByKey());
+
+        StringBuilder row = new StringBuilder(128);
+        for (Map.Entry<String, AggregatedData> entry : entries) {
+            row.setLength(0);
+            row.append(entry.getKey())
+                    .append(",")
+                    .append(entry.getValue().totalDuration)
+                    .append(",")
+                    .append(entry.getValue().totalPackets)
+                    .append("\n");
+            output.append(row);
+            if (listener != null) {
+                notify(listener, entry.getKey(), entry.getValue());
+            }
+        }
+    }
 
-        return output.toString();
+    // key is date,source,destination.
+    private static void notify(SummaryListener listener, String key, AggregatedData data) {
+        int source = key.indexOf(',') + 1;
+        int destination = key.indexOf(',', source) + 1;
+        listener.row(key.substring(0, source - 1), key.substring(source, destination - 1), key.substring(destination),
+                data.totalDuration, data.totalPackets);
     }
 
     static class AggregatedData {
@@ -0,0 +1,21 @@
+
+// Sees every row of a summary as it is written, for the reports kept next to it.
+@FunctionalInterface
+public interface SummaryListener {
+
+    void row(String date, String source, String destination, long duration, long packets);
+
+    // Either may be null.
+    static SummaryListener both(SummaryListener first, SummaryListener second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        return (date, source, destination, duration, packets) -> {
+            first.row(date, source, destination, duration, packets);
+            second.row(date, source, destination, duration, packets);
+        };
+    }
+}
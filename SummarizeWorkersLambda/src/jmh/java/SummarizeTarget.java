@@ -0,0 +1,18 @@
+
+import java.io.InputStream;
+
+import benchmark.Summarizer;
+
+public class SummarizeTarget implements Summarizer {
+
+    private final CsvProcessor csvProcessor;
+
+    public SummarizeTarget(String engine) {
+        this.csvProcessor = new CsvProcessor(CsvProcessor.Engine.valueOf(engine));
+    }
+
+    @Override
+    public String summarize(InputStream inputStream) throws Exception {
+        return csvProcessor.processCsv(inputStream);
+    }
+}
@@ -0,0 +1,116 @@
+package benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Compresses and decompresses the summary the FLOW_PARSER engine writes for a generated flow CSV.
+// Throughput is in uncompressed bytes; the compressed size of each configuration is printed once
+// per trial as "ratio" so CPU cost can be weighed against bytes saved.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx4g"})
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class CodecBenchmark {
+
+    @Param({"100", "1024"})
+    public int sizeMb;
+
+    @Param({"1000", "1000000"})
+    public int keys;
+
+    @Param({"NONE", "GZIP", "LZ4"})
+    public String codec;
+
+    private Codec objectCodec;
+    private byte[] summary;
+    private byte[] compressed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        FlowCsvGenerator.Dataset dataset = FlowCsvGenerator.generate(sizeMb * 1024L * 1024L, keys);
+        try (InputStream inputStream = Files.newInputStream(dataset.path)) {
+            summary = Summarizer.load("FLOW_PARSER").summarize(inputStream).getBytes(Charset.defaultCharset());
+        }
+        objectCodec = Codec.load(codec);
+        compressed = compress();
+        System.out.printf("%n%s: %d summary bytes -> %d bytes, ratio %.2f%n",
+                codec, summary.length, compressed.length, (double) summary.length / compressed.length);
+    }
+
+    @Benchmark
+    public byte[] encode(Throughput throughput) throws IOException {
+        byte[] output = compress();
+        throughput.bytes += summary.length;
+        return output;
+    }
+
+    @Benchmark
+    public long decode(Throughput throughput) throws IOException {
+        long total = 0;
+        byte[] buffer = new byte[65536];
+        try (InputStream inputStream = objectCodec.decode(new ByteArrayInputStream(compressed))) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                total += read;
+            }
+        }
+        throughput.bytes += total;
+        return total;
+    }
+
+    private byte[] compress() throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(summary.length / 2);
+        try (OutputStream outputStream = objectCodec.encode(byteArrayOutputStream)) {
+            outputStream.write(summary);
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(CodecBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
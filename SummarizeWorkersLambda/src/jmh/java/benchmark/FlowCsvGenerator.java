@@ -0,0 +1,102 @@
+package benchmark;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+public class FlowCsvGenerator {
+
+    private static final String HEADER = "Flow ID,Source IP,Source Port,Destination IP,Destination Port,Protocol,Timestamp,Flow Duration,Total Fwd Packets,Total Backward Packets\n";
+    private static final int DAYS = 5;
+
+    public static Dataset generate(long targetBytes, int keyCount) throws IOException {
+        Path path = Paths.get(System.getProperty("java.io.tmpdir"),
+                "flows_" + targetBytes + "_" + keyCount + ".csv");
+
+        if (!Files.exists(path) || Files.size(path) < targetBytes) {
+            write(path, targetBytes, keyCount);
+        }
+
+        return new Dataset(path, Files.size(path), countRecords(path));
+    }
+
+    private static void write(Path path, long targetBytes, int keyCount) throws IOException {
+        Random random = new Random(42L + keyCount);
+        String[] sources = new String[keyCount];
+        String[] destinations = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            sources[i] = "192.168." + (i >>> 8 & 0xFF) + "." + (i & 0xFF);
+            destinations[i] = "10." + (i >>> 16 & 0xFF) + "." + (i >>> 8 & 0xFF) + "." + (random.nextInt(254) + 1);
+        }
+
+        Path tmp = Paths.get(path + ".tmp");
+        long written = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            written += HEADER.length();
+
+            StringBuilder row = new StringBuilder(160);
+            while (written < targetBytes) {
+                int key = random.nextInt(keyCount);
+                int sourcePort = random.nextInt(65535) + 1;
+                int destPort = random.nextInt(1024) + 1;
+                int hour = random.nextInt(12) + 1;
+
+                row.setLength(0);
+                row.append(destinations[key]).append('-').append(sources[key]).append('-')
+                        .append(destPort).append('-').append(sourcePort).append("-6,")
+                        .append(sources[key]).append(',').append(sourcePort).append(',')
+                        .append(destinations[key]).append(',').append(destPort).append(",6,")
+                        .append(pad(random.nextInt(DAYS) + 3)).append("/07/2017 ")
+                        .append(pad(hour)).append(':').append(pad(random.nextInt(60))).append(':')
+                        .append(pad(random.nextInt(60))).append(random.nextBoolean() ? " AM," : " PM,")
+                        .append(random.nextInt(120_000_000)).append(',')
+                        .append(random.nextInt(200) + 1).append(',')
+                        .append(random.nextInt(200)).append('\n');
+
+                writer.append(row);
+                written += row.length();
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String pad(int value) {
+        return value < 10 ? "0" + value : Integer.toString(value);
+    }
+
+    private static long countRecords(Path path) throws IOException {
+        long lines = 0;
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        lines++;
+                    }
+                }
+            }
+        }
+        return lines - 1;
+    }
+
+    public static class Dataset {
+
+        final Path path;
+        final long bytes;
+        final long records;
+
+        Dataset(Path path, long bytes, long records) {
+            this.path = path;
+            this.bytes = bytes;
+            this.records = records;
+        }
+    }
+}
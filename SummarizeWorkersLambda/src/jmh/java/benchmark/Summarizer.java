@@ -0,0 +1,12 @@
+package benchmark;
+
+import java.io.InputStream;
+
+public interface Summarizer {
+
+    String summarize(InputStream inputStream) throws Exception;
+
+    static Summarizer load(String engine) throws ReflectiveOperationException {
+        return (Summarizer) Class.forName("SummarizeTarget").getDeclaredConstructor(String.class).newInstance(engine);
+    }
+}
@@ -0,0 +1,104 @@
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+public class AddressDictionary {
+
+    private static final int EMPTY = -1;
+
+    private int[] slots = new int[1024];
+    private int mask = slots.length - 1;
+
+    private byte[] bytes = new byte[1 << 14];
+    private int bytesUsed = 0;
+
+    private int[] offsets = new int[256];
+    private int[] lengths = new int[256];
+    private int[] hashes = new int[256];
+    private int size = 0;
+
+    public AddressDictionary() {
+        Arrays.fill(slots, EMPTY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int intern(byte[] buffer, int start, int end) {
+        int length = end - start;
+        int hash = hash(buffer, start, end);
+        int slot = hash & mask;
+
+        while (true) {
+            int id = slots[slot];
+            if (id == EMPTY) {
+                return insert(slot, buffer, start, length, hash);
+            }
+            if (hashes[id] == hash && lengths[id] == length
+                    && Arrays.equals(bytes, offsets[id], offsets[id] + length, buffer, start, end)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public int intern(AddressDictionary other, int otherId) {
+        int offset = other.offsets[otherId];
+        return intern(other.bytes, offset, offset + other.lengths[otherId]);
+    }
+
+    public String get(int id, Charset charset) {
+        return new String(bytes, offsets[id], lengths[id], charset);
+    }
+
+    private int insert(int slot, byte[] buffer, int start, int length, int hash) {
+        if (size == hashes.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        if (bytesUsed + length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, bytesUsed + length));
+        }
+
+        System.arraycopy(buffer, start, bytes, bytesUsed, length);
+        offsets[size] = bytesUsed;
+        lengths[size] = length;
+        hashes[size] = hash;
+        bytesUsed += length;
+
+        slots[slot] = size;
+        int id = size++;
+
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        mask = slots.length - 1;
+        Arrays.fill(slots, EMPTY);
+
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (slots[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id;
+        }
+    }
+
+    private static int hash(byte[] buffer, int start, int end) {
+        int h = 1;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + buffer[i];
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+}
@@ -0,0 +1,73 @@
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The HyperLogLog sketches of one summary: per date and address, the distinct destinations it sent
+// to and the distinct sources it heard from. The summarize stage writes them next to the summary,
+// keyed <summary key>.hll, as
+//
+//   date,ip_address,direction,sketch
+//
+// and the consolidators read them back as state rows under fan:<address>, see HyperLogLog.
+public final class AddressSketches {
+
+    public static final String SKETCH_SUFFIX = ".hll";
+    public static final String HEADER = "date,ip_address,direction,sketch";
+
+    private final HashMap<List<String>, HyperLogLog> sketches = new HashMap<>();
+
+    public static boolean isSketchFile(String key) {
+        return key.endsWith(SKETCH_SUFFIX);
+    }
+
+    public static String sketchKey(String summaryKey) {
+        return summaryKey + SKETCH_SUFFIX;
+    }
+
+    public int size() {
+        return sketches.size();
+    }
+
+    public void add(String date, String source, String destination) {
+        sketches.computeIfAbsent(Arrays.asList(date, source, HyperLogLog.FAN_OUT), key -> new HyperLogLog()).add(destination);
+        sketches.computeIfAbsent(Arrays.asList(date, destination, HyperLogLog.FAN_IN), key -> new HyperLogLog()).add(source);
+    }
+
+    public void write(Appendable output) throws IOException {
+        output.append(HEADER).append('\n');
+        StringBuilder row = new StringBuilder(128);
+        for (Map.Entry<List<String>, HyperLogLog> sketch : sketches.entrySet()) {
+            List<String> key = sketch.getKey();
+            row.setLength(0);
+            row.append(key.get(0)).append(',')
+                    .append(key.get(1)).append(',')
+                    .append(key.get(2)).append(',')
+                    .append(sketch.getValue().encode())
+                    .append('\n');
+            output.append(row);
+        }
+    }
+
+    // Sketch files as a consolidation batch: fan:<address> -> rows date, direction, sketch. Rows
+    // that do not parse are skipped.
+    public static HashMap<String, List<List<String>>> read(Reader input) throws IOException {
+        HashMap<String, List<List<String>>> batch = new HashMap<>();
+        BufferedReader reader = new BufferedReader(input);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split(",", -1);
+            if (fields.length != 4 || !(fields[2].equals(HyperLogLog.FAN_OUT) || fields[2].equals(HyperLogLog.FAN_IN))) {
+                continue;
+            }
+            batch.computeIfAbsent(HyperLogLog.stateKey(fields[1]), key -> new ArrayList<>())
+                    .add(new ArrayList<>(Arrays.asList(fields[0], fields[2], fields[3])));
+        }
+        return batch;
+    }
+}
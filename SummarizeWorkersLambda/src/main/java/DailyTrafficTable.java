@@ -0,0 +1,336 @@
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DailyTrafficTable {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final long SOURCE_IN_DICTIONARY = 2;
+    private static final long DESTINATION_IN_DICTIONARY = 1;
+
+    private final Charset charset;
+    private final AddressDictionary dictionary = new AddressDictionary();
+
+    // two longs per slot: (epoch day << 2 | dictionary flags), then (source << 32 | destination)
+    private long[] keys;
+    private long[] totalDurations;
+    private long[] totalPackets;
+    private int mask;
+    private int size = 0;
+
+    public DailyTrafficTable(Charset charset) {
+        this.charset = charset;
+        allocate(2048);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity * 2];
+        Arrays.fill(keys, EMPTY);
+        totalDurations = new long[capacity];
+        totalPackets = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    public void add(long epochDay, byte[] buffer, int sourceStart, int sourceEnd, int destStart, int destEnd,
+            long duration, long packets) {
+        long header = epochDay << 2;
+
+        long source = parseIpv4(buffer, sourceStart, sourceEnd);
+        if (source < 0) {
+            source = dictionary.intern(buffer, sourceStart, sourceEnd);
+            header |= SOURCE_IN_DICTIONARY;
+        }
+
+        long destination = parseIpv4(buffer, destStart, destEnd);
+        if (destination < 0) {
+            destination = dictionary.intern(buffer, destStart, destEnd);
+            header |= DESTINATION_IN_DICTIONARY;
+        }
+
+        add(header, source << 32 | destination, duration, packets);
+    }
+
+    private void add(long header, long addresses, long duration, long packets) {
+        int slot = hash(header, addresses) & mask;
+
+        while (true) {
+            long existing = keys[slot * 2];
+            if (existing == EMPTY) {
+                keys[slot * 2] = header;
+                keys[slot * 2 + 1] = addresses;
+                totalDurations[slot] = duration;
+                totalPackets[slot] = packets;
+                if (++size * 2 > totalDurations.length) {
+                    rehash();
+                }
+                return;
+            }
+            if (existing == header && keys[slot * 2 + 1] == addresses) {
+                totalDurations[slot] += duration;
+                totalPackets[slot] += packets;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        long[] oldDurations = totalDurations;
+        long[] oldPackets = totalPackets;
+
+        allocate(oldDurations.length * 2);
+
+        for (int slot = 0; slot < oldDurations.length; slot++) {
+            if (oldKeys[slot * 2] == EMPTY) {
+                continue;
+            }
+            int target = hash(oldKeys[slot * 2], oldKeys[slot * 2 + 1]) & mask;
+            while (keys[target * 2] != EMPTY) {
+                target = (target + 1) & mask;
+            }
+            keys[target * 2] = oldKeys[slot * 2];
+            keys[target * 2 + 1] = oldKeys[slot * 2 + 1];
+            totalDurations[target] = oldDurations[slot];
+            totalPackets[target] = oldPackets[slot];
+        }
+    }
+
+    private static int hash(long header, long addresses) {
+        long h = header * 0x9E3779B97F4A7C15L ^ addresses;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    public void mergeFrom(DailyTrafficTable other) {
+        for (int slot = 0; slot < other.totalDurations.length; slot++) {
+            long header = other.keys[slot * 2];
+            if (header == EMPTY) {
+                continue;
+            }
+            long source = other.keys[slot * 2 + 1] >>> 32;
+            long destination = other.keys[slot * 2 + 1] & 0xFFFFFFFFL;
+            if ((header & SOURCE_IN_DICTIONARY) != 0) {
+                source = dictionary.intern(other.dictionary, (int) source);
+            }
+            if ((header & DESTINATION_IN_DICTIONARY) != 0) {
+                destination = dictionary.intern(other.dictionary, (int) destination);
+            }
+            add(header, source << 32 | destination, other.totalDurations[slot], other.totalPackets[slot]);
+        }
+    }
+
+    static long parseIpv4(byte[] buffer, int start, int end) {
+        long value = 0;
+        int i = start;
+
+        for (int octets = 1; ; octets++) {
+            int octetStart = i;
+            int octet = 0;
+            while (i < end && buffer[i] >= '0' && buffer[i] <= '9' && i - octetStart < 3) {
+                octet = octet * 10 + (buffer[i++] - '0');
+            }
+
+            int digits = i - octetStart;
+            if (digits == 0 || octet > 255 || (digits > 1 && buffer[octetStart] == '0')) {
+                return -1;
+            }
+            value = value << 8 | octet;
+
+            if (octets == 4) {
+                return i == end ? value : -1;
+            }
+            if (i >= end || buffer[i] != '.') {
+                return -1;
+            }
+            i++;
+        }
+    }
+
+    static String formatIpv4(long address) {
+        return (address >>> 24 & 0xFF) + "." + (address >>> 16 & 0xFF) + "." + (address >>> 8 & 0xFF) + "." + (address & 0xFF);
+    }
+
+    public void writeOutput(Appendable output) throws IOException {
+        writeOutput(output, null);
+    }
+
+    // Each row written is also passed to listener, when given.
+    public void writeOutput(Appendable output, SummaryListener listener) throws IOException {
+        List<Long> days = new ArrayList<>();
+        List<String> dates = new ArrayList<>();
+        List<Long> addressKeys = new ArrayList<>();
+        List<String> addresses = new ArrayList<>();
+        Map<Long, Integer> dateIndex = new HashMap<>();
+        Map<Long, Integer> addressIndex = new HashMap<>();
+
+        int[] slots = new int[size];
+        int[] dateIds = new int[size];
+        int[] sourceIds = new int[size];
+        int[] destinationIds = new int[size];
+
+        int count = 0;
+        for (int slot = 0; slot < totalDurations.length; slot++) {
+            long header = keys[slot * 2];
+            if (header == EMPTY) {
+                continue;
+            }
+            slots[count] = slot;
+            dateIds[count] = dateIndex.computeIfAbsent(header >> 2, day -> {
+                days.add(day);
+                dates.add(LocalDate.ofEpochDay(day).toString());
+                return dates.size() - 1;
+            });
+            sourceIds[count] = addressId(keys[slot * 2 + 1] >>> 32, (header & SOURCE_IN_DICTIONARY) != 0,
+                    addressIndex, addressKeys, addresses);
+            destinationIds[count] = addressId(keys[slot * 2 + 1] & 0xFFFFFFFFL, (header & DESTINATION_IN_DICTIONARY) != 0,
+                    addressIndex, addressKeys, addresses);
+            count++;
+        }
+
+        output.append("date,source_ip,destination_ip,total_flow_duration,total_forward_packets\n");
+        StringBuilder row = new StringBuilder(128);
+
+        long addressCount = Math.max(addresses.size(), 1);
+        if (!sortsLikeJoinedKey(dates, addresses) || dates.size() > Long.MAX_VALUE / addressCount / addressCount) {
+            appendSortedByJoinedKey(output, listener, row, dates, addresses, slots, dateIds, sourceIds, destinationIds);
+            return;
+        }
+
+        // Each entry becomes (date rank, source rank, destination rank) packed into one long, so the
+        // sort runs on primitives and the entry is found again from the decoded ranks.
+        int[] dateRanks = ranks(dates);
+        int[] addressRanks = ranks(addresses);
+        long[] packed = new long[size];
+        for (int i = 0; i < size; i++) {
+            packed[i] = (dateRanks[dateIds[i]] * addressCount + addressRanks[sourceIds[i]]) * addressCount
+                    + addressRanks[destinationIds[i]];
+        }
+        Arrays.parallelSort(packed);
+
+        int[] dateByRank = inverse(dateRanks);
+        int[] addressByRank = inverse(addressRanks);
+        for (long value : packed) {
+            int dateId = dateByRank[(int) (value / addressCount / addressCount)];
+            int sourceId = addressByRank[(int) (value / addressCount % addressCount)];
+            int destinationId = addressByRank[(int) (value % addressCount)];
+
+            long sourceKey = addressKeys.get(sourceId);
+            long destinationKey = addressKeys.get(destinationId);
+            long header = days.get(dateId) << 2
+                    | (sourceKey < 0 ? SOURCE_IN_DICTIONARY : 0)
+                    | (destinationKey < 0 ? DESTINATION_IN_DICTIONARY : 0);
+            long source = sourceKey < 0 ? -1 - sourceKey : sourceKey;
+            long destination = destinationKey < 0 ? -1 - destinationKey : destinationKey;
+            int slot = find(header, source << 32 | destination);
+
+            appendRow(output, listener, row, dates.get(dateId), addresses.get(sourceId), addresses.get(destinationId), slot);
+        }
+    }
+
+    private int find(long header, long addresses) {
+        int slot = hash(header, addresses) & mask;
+        while (keys[slot * 2] != header || keys[slot * 2 + 1] != addresses) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void appendRow(Appendable output, SummaryListener listener, StringBuilder row, String date, String source,
+            String destination, int slot) throws IOException {
+        row.setLength(0);
+        row.append(date)
+                .append(",")
+                .append(source)
+                .append(",")
+                .append(destination)
+                .append(",")
+                .append(totalDurations[slot])
+                .append(",")
+                .append(totalPackets[slot])
+                .append("\n");
+        output.append(row);
+        if (listener != null) {
+            listener.row(date, source, destination, totalDurations[slot], totalPackets[slot]);
+        }
+    }
+
+    private void appendSortedByJoinedKey(Appendable output, SummaryListener listener, StringBuilder row, List<String> dates,
+            List<String> addresses, int[] slots, int[] dateIds, int[] sourceIds, int[] destinationIds) throws IOException {
+        String[] joinedKeys = new String[size];
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            joinedKeys[i] = dates.get(dateIds[i]) + "," + addresses.get(sourceIds[i]) + "," + addresses.get(destinationIds[i]);
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(i -> joinedKeys[i]));
+
+        for (int i : order) {
+            appendRow(output, listener, row, dates.get(dateIds[i]), addresses.get(sourceIds[i]),
+                    addresses.get(destinationIds[i]), slots[i]);
+        }
+    }
+
+    // Dictionary entries are keyed as -1 - id so they never collide with an IPv4 address.
+    private int addressId(long code, boolean inDictionary, Map<Long, Integer> index, List<Long> addressKeys, List<String> addresses) {
+        return index.computeIfAbsent(inDictionary ? -1 - code : code, key -> {
+            addressKeys.add(key);
+            addresses.add(inDictionary ? dictionary.get((int) code, charset) : formatIpv4(code));
+            return addresses.size() - 1;
+        });
+    }
+
+    private static int[] inverse(int[] ranks) {
+        int[] inverse = new int[ranks.length];
+        for (int id = 0; id < ranks.length; id++) {
+            inverse[ranks[id]] = id;
+        }
+        return inverse;
+    }
+
+    private static int[] ranks(List<String> values) {
+        Integer[] sorted = new Integer[values.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i;
+        }
+        Arrays.sort(sorted, Comparator.comparing(values::get));
+
+        int[] ranks = new int[sorted.length];
+        for (int rank = 0; rank < sorted.length; rank++) {
+            ranks[sorted[rank]] = rank;
+        }
+        return ranks;
+    }
+
+    // Sorting by (date, source, destination) matches sorting the joined "date,source,destination"
+    // strings as long as every date has the same length and no address contains a character
+    // that sorts before or equal to the ',' separator.
+    private static boolean sortsLikeJoinedKey(List<String> dates, List<String> addresses) {
+        for (String date : dates) {
+            if (date.length() != dates.get(0).length()) {
+                return false;
+            }
+        }
+        for (String address : addresses) {
+            for (int i = 0; i < address.length(); i++) {
+                if (address.charAt(i) <= ',') {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,166 @@
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ParallelSummarizer {
+
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private final int threads;
+    private final int chunkSize;
+    private final Charset charset;
+
+    public ParallelSummarizer(int threads, int chunkSize, Charset charset) {
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+        this.charset = charset;
+    }
+
+    public ParallelSummarizer(Charset charset) {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE, charset);
+    }
+
+    public DailyTrafficTable summarize(InputStream inputStream) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "summarize-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(threads + 2);
+            for (int i = 0; i < threads + 2; i++) {
+                freeBuffers.add(new byte[chunkSize]);
+            }
+
+            ConcurrentLinkedQueue<DailyTrafficTable> partials = new ConcurrentLinkedQueue<>();
+            ThreadLocal<FlowRecordParser> parsers = ThreadLocal.withInitial(() -> {
+                DailyTrafficTable partial = new DailyTrafficTable(charset);
+                partials.add(partial);
+                return new FlowRecordParser(partial, charset);
+            });
+
+            List<Future<?>> tasks = new ArrayList<>();
+            byte[] chunk = freeBuffers.take();
+            int length = 0;
+            boolean firstChunk = true;
+            boolean endOfInput = false;
+
+            while (!endOfInput) {
+                int read = inputStream.read(chunk, length, chunk.length - length);
+                if (read == -1) {
+                    endOfInput = true;
+                } else {
+                    length += read;
+                    if (length < chunk.length) {
+                        continue;
+                    }
+                }
+
+                int end = endOfInput ? length : lastLineBreak(chunk, length) + 1;
+                if (end == 0) {
+                    chunk = Arrays.copyOf(chunk, chunk.length * 2);
+                    continue;
+                }
+
+                byte[] next = endOfInput ? null : freeBuffers.take();
+                int remaining = length - end;
+                if (next != null) {
+                    if (next.length < remaining) {
+                        next = new byte[chunk.length];
+                    }
+                    System.arraycopy(chunk, end, next, 0, remaining);
+                }
+
+                tasks.add(submitChunk(executor, parsers, freeBuffers, chunk, end, firstChunk));
+
+                chunk = next;
+                length = remaining;
+                firstChunk = false;
+            }
+
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+
+            return merge(executor, new ArrayList<>(partials), charset);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while summarizing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error while summarizing chunk: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Future<?> submitChunk(ExecutorService executor, ThreadLocal<FlowRecordParser> parsers,
+            BlockingQueue<byte[]> freeBuffers, byte[] chunk, int length, boolean firstChunk) {
+        return executor.submit(() -> {
+            try {
+                parsers.get().parseChunk(chunk, 0, length, firstChunk);
+            } finally {
+                if (chunk.length == chunkSize) {
+                    freeBuffers.offer(chunk);
+                } else {
+                    freeBuffers.offer(new byte[chunkSize]);
+                }
+            }
+        });
+    }
+
+    private static int lastLineBreak(byte[] chunk, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (chunk[i] == '\n' || chunk[i] == '\r') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static DailyTrafficTable merge(ExecutorService executor, List<DailyTrafficTable> partials, Charset charset)
+            throws InterruptedException, ExecutionException {
+        if (partials.isEmpty()) {
+            return new DailyTrafficTable(charset);
+        }
+
+        while (partials.size() > 1) {
+            List<Future<DailyTrafficTable>> merges = new ArrayList<>();
+            for (int i = 0; i + 1 < partials.size(); i += 2) {
+                DailyTrafficTable left = partials.get(i);
+                DailyTrafficTable right = partials.get(i + 1);
+                merges.add(executor.submit(() -> {
+                    if (left.size() >= right.size()) {
+                        left.mergeFrom(right);
+                        return left;
+                    }
+                    right.mergeFrom(left);
+                    return right;
+                }));
+            }
+
+            List<DailyTrafficTable> merged = new ArrayList<>();
+            for (Future<DailyTrafficTable> future : merges) {
+                merged.add(future.get());
+            }
+            if (partials.size() % 2 == 1) {
+                merged.add(partials.get(partials.size() - 1));
+            }
+            partials = merged;
+        }
+
+        return partials.get(0);
+    }
+}
@@ -1,14 +1,8 @@
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 
 public class S3Handler {
@@ -24,16 +18,12 @@ public class S3Handler {
         return s3Client.getObject(new GetObjectRequest(bucketName, objectKey));
     }
 
-    public void uploadToS3(String content, String key) throws IOException {
-        byte[] contentBytes = content.getBytes();
-        try (InputStream inputStream = new ByteArrayInputStream(contentBytes)) {
-            ObjectMetadata metadata = new ObjectMetadata();
-            metadata.setContentLength(contentBytes.length);
-            metadata.setContentType("text/csv");
+    public S3MultipartOutputStream openUploadStream(String key, ObjectCodec codec) {
+        return new S3MultipartOutputStream(s3Client, OUTPUT_BUCKET, key, "text/csv", codec.metadata());
+    }
 
-            PutObjectRequest putRequest = new PutObjectRequest(OUTPUT_BUCKET, key, inputStream, metadata);
-            s3Client.putObject(putRequest);
-        }
+    public void putReport(String key, String text) {
+        s3Client.putObject(OUTPUT_BUCKET, key, text);
     }
 
     public void deleteFileFromS3(String bucketName, String objectKey) {
@@ -0,0 +1,197 @@
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+// Streams an object to S3 in parts of partSize bytes, up to partsInFlight of them uploading at once.
+// An object that fits in one part is written with a single PutObject, a larger one by
+// CompleteMultipartUpload, so its S3 event is s3:ObjectCreated:CompleteMultipartUpload and not
+// s3:ObjectCreated:Put. Triggers on these objects must subscribe to s3:ObjectCreated:*.
+public class S3MultipartOutputStream extends OutputStream {
+
+    public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_PARTS_IN_FLIGHT = 4;
+
+    private final AmazonS3 s3Client;
+    private final String bucket;
+    private final String key;
+    private final String contentType;
+    private final Map<String, String> userMetadata;
+    private final ExecutorService uploader;
+    private final BlockingQueue<byte[]> freeBuffers;
+    private final List<Future<PartETag>> parts = new ArrayList<>();
+
+    private byte[] buffer;
+    private int length = 0;
+    private String uploadId;
+    private boolean closed = false;
+
+    public S3MultipartOutputStream(AmazonS3 s3Client, String bucket, String key, String contentType,
+            Map<String, String> userMetadata, int partSize, int partsInFlight) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+        this.contentType = contentType;
+        this.userMetadata = userMetadata;
+        this.uploader = Executors.newFixedThreadPool(partsInFlight, runnable -> {
+            Thread thread = new Thread(runnable, "multipart-upload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.freeBuffers = new ArrayBlockingQueue<>(partsInFlight + 1);
+        for (int i = 0; i < partsInFlight + 1; i++) {
+            freeBuffers.add(new byte[partSize]);
+        }
+        this.buffer = freeBuffers.poll();
+    }
+
+    public S3MultipartOutputStream(AmazonS3 s3Client, String bucket, String key, String contentType) {
+        this(s3Client, bucket, key, contentType, Map.of());
+    }
+
+    public S3MultipartOutputStream(AmazonS3 s3Client, String bucket, String key, String contentType,
+            Map<String, String> userMetadata) {
+        this(s3Client, bucket, key, contentType, userMetadata, DEFAULT_PART_SIZE, DEFAULT_PARTS_IN_FLIGHT);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (length == buffer.length) {
+            flushPart();
+        }
+        buffer[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int count) throws IOException {
+        while (count > 0) {
+            if (length == buffer.length) {
+                flushPart();
+            }
+            int chunk = Math.min(count, buffer.length - length);
+            System.arraycopy(bytes, offset, buffer, length, chunk);
+            length += chunk;
+            offset += chunk;
+            count -= chunk;
+        }
+    }
+
+    private void flushPart() throws IOException {
+        if (uploadId == null) {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentType(contentType);
+            metadata.setUserMetadata(userMetadata);
+            uploadId = s3Client.initiateMultipartUpload(
+                    new InitiateMultipartUploadRequest(bucket, key).withObjectMetadata(metadata)).getUploadId();
+        }
+
+        byte[] part = buffer;
+        int partLength = length;
+        int partNumber = parts.size() + 1;
+
+        parts.add(uploader.submit(() -> {
+            try {
+                UploadPartRequest uploadRequest = new UploadPartRequest()
+                        .withBucketName(bucket)
+                        .withKey(key)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withPartSize(partLength)
+                        .withInputStream(new ByteArrayInputStream(part, 0, partLength));
+
+                return s3Client.uploadPart(uploadRequest).getPartETag();
+            } finally {
+                freeBuffers.offer(part);
+            }
+        }));
+
+        try {
+            buffer = freeBuffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a part buffer", e);
+        }
+        length = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (uploadId == null) {
+                ObjectMetadata metadata = new ObjectMetadata();
+                metadata.setContentLength(length);
+                metadata.setContentType(contentType);
+                metadata.setUserMetadata(userMetadata);
+
+                s3Client.putObject(new PutObjectRequest(bucket, key, new ByteArrayInputStream(buffer, 0, length), metadata));
+                return;
+            }
+
+            if (length > 0) {
+                flushPart();
+            }
+
+            List<PartETag> partETags = new ArrayList<>();
+            for (Future<PartETag> part : parts) {
+                partETags.add(part.get());
+            }
+            partETags.sort(Comparator.comparingInt(PartETag::getPartNumber));
+
+            s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags));
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abortUpload();
+            throw new IOException("Interrupted while uploading " + key, e);
+        } catch (ExecutionException | RuntimeException e) {
+            abortUpload();
+            throw new IOException("Error uploading " + key + " to bucket " + bucket, e);
+        } finally {
+            uploader.shutdownNow();
+        }
+    }
+
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        abortUpload();
+        uploader.shutdownNow();
+    }
+
+    private void abortUpload() {
+        if (uploadId == null) {
+            return;
+        }
+        try {
+            s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        } catch (Exception e) {
+            System.err.println("Error aborting multipart upload of " + key + ": " + e.getMessage());
+        }
+    }
+}
@@ -1,4 +1,9 @@
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 
@@ -12,9 +17,17 @@ public class SummarizeWorker implements RequestHandler<S3Event, String> {
 
     private final S3Handler s3Handler;
     private final CsvProcessor csvProcessor;
+    private final ObjectCodec outputCodec;
+    private final int heavyHitters;
+    private final boolean fanSketches;
 
     public SummarizeWorker() {
-        this.csvProcessor = new CsvProcessor();
+        String engine = System.getenv("SUMMARIZE_ENGINE");
+        this.csvProcessor = new CsvProcessor(engine == null ? CsvProcessor.Engine.FASTCSV : CsvProcessor.Engine.valueOf(engine));
+        this.outputCodec = ObjectCodec.fromName(System.getenv("SUMMARY_CODEC"));
+        String heavyHitters = System.getenv("HEAVY_HITTERS");
+        this.heavyHitters = heavyHitters == null || heavyHitters.isEmpty() ? 0 : Integer.parseInt(heavyHitters.trim());
+        this.fanSketches = Boolean.parseBoolean(System.getenv("FAN_SKETCHES"));
         this.s3Handler = new S3Handler();
     }
 
@@ -41,12 +54,32 @@ public class SummarizeWorker implements RequestHandler<S3Event, String> {
 
     public void processFile(String bucketName, String objectKey) {
         try {
-            S3Object s3Object = s3Handler.getObject(bucketName, objectKey);
-            String processedCsv = csvProcessor.processCsv(s3Object.getObjectContent());
-
             String outputKey = csvProcessor.generateOutputKey(objectKey);
+            S3MultipartOutputStream outputStream = s3Handler.openUploadStream(outputKey, outputCodec);
+
+            HeavyHitters report = heavyHitters > 0 ? new HeavyHitters(heavyHitters) : null;
+            AddressSketches sketches = fanSketches ? new AddressSketches() : null;
+            SummaryListener listener = SummaryListener.both(
+                    report == null ? null : (date, source, destination, duration, packets) -> report.add(date, source, destination, duration, packets),
+                    sketches == null ? null : (date, source, destination, duration, packets) -> sketches.add(date, source, destination));
+            try (S3Object s3Object = s3Handler.getObject(bucketName, objectKey)) {
+                OutputStream encodedStream = outputCodec.encode(outputStream);
+                csvProcessor.processCsv(s3Object.getObjectContent(), encodedStream, listener);
+                encodedStream.close();
+            } catch (Exception e) {
+                outputStream.abort();
+                throw e;
+            }
+
+            if (report != null) {
+                StringBuilder text = new StringBuilder();
+                report.write(text);
+                s3Handler.putReport(HeavyHitters.reportKey(outputKey), text.toString());
+            }
+            if (sketches != null) {
+                writeSketches(AddressSketches.sketchKey(outputKey), sketches);
+            }
 
-            s3Handler.uploadToS3(processedCsv, outputKey);
             s3Handler.deleteFileFromS3(bucketName, objectKey);
 
             System.out.println("Successfully processed and deleted " + objectKey);
@@ -55,4 +88,14 @@ public class SummarizeWorker implements RequestHandler<S3Event, String> {
             throw new RuntimeException("Error processing file from bucket: " + bucketName + ", key: " + objectKey, e);
         }
     }
+
+    private void writeSketches(String sketchKey, AddressSketches sketches) throws IOException {
+        S3MultipartOutputStream outputStream = s3Handler.openUploadStream(sketchKey, outputCodec);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(outputCodec.encode(outputStream), StandardCharsets.UTF_8), 65536)) {
+            sketches.write(writer);
+        } catch (IOException | RuntimeException e) {
+            outputStream.abort();
+            throw e;
+        }
+    }
 }